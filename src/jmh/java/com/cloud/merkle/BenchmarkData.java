@@ -0,0 +1,38 @@
+package com.cloud.merkle;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+class BenchmarkData {
+    // fixed-size chunks like the 8-byte lines Orchestrator sends to the workers
+    static byte[][] chunks(int count, int chunkSize) {
+        SplittableRandom random = new SplittableRandom(42);
+        byte[][] data = new byte[count][chunkSize];
+        for (byte[] chunk : data) {
+            random.nextBytes(chunk);
+        }
+        return data;
+    }
+
+    static byte[] flatten(byte[][] hashes, int hashLength) {
+        byte[] flat = FlatMerkleTree.allocateLevel(hashes.length, hashLength);
+        for (int i = 0; i < hashes.length; i++) {
+            System.arraycopy(hashes[i], 0, flat, i * hashLength, hashLength);
+        }
+        return flat;
+    }
+
+    // root of generateMerkleTree, which pads odd levels explicitly; a builder that stops a level short or pads
+    // differently fails the trial instead of being timed on the wrong tree
+    static void requireReferenceRoot(byte[][] hashes, byte[] root, String builder) {
+        byte[] expected = MerkleTree.getRootFromTree(MerkleTree.generateMerkleTree(hashes, MerkleHasher.SHA_256));
+        if (!Arrays.equals(expected, root)) {
+            throw new IllegalStateException(builder + " returned a wrong root for " + hashes.length + " leaves");
+        }
+    }
+
+    static int leafCount(int leavesLog2, String shape) {
+        // ODD drops the last leaf so the leaf level has to be padded
+        return shape.equals("ODD") ? (1 << leavesLog2) - 1 : 1 << leavesLog2;
+    }
+}
@@ -0,0 +1,42 @@
+package com.cloud.merkle;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class ForkJoinTreeBenchmark {
+    @Param({"10", "12", "14", "16", "18", "20", "22", "24"})
+    int leavesLog2;
+
+    @Param({"POW2", "ODD"})
+    String shape;
+
+    @Param({"256", "1024", "4096", "16384", "65536"})
+    int threshold;
+
+    byte[][] hashes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[][] data = BenchmarkData.chunks(BenchmarkData.leafCount(leavesLog2, shape), 8);
+        hashes = MerkleTree.hashLeaves(data, MerkleHasher.SHA_256);
+        BenchmarkData.requireReferenceRoot(hashes, parallelFromHash(), "parallelFromHash");
+        BenchmarkData.requireReferenceRoot(hashes, recursiveFromHash(), "recursiveFromHash");
+    }
+
+    @Benchmark
+    public byte[] parallelFromHash() {
+        return ParallelMerkleTree.genMerkleRootFromHash(hashes, threshold);
+    }
+
+    @Benchmark
+    public byte[] recursiveFromHash() {
+        return RecursiveMerkleTree.genMerkleRootFromHash(hashes, threshold);
+    }
+}
@@ -0,0 +1,55 @@
+package com.cloud.merkle;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// scaling curve of the level-fused builder against one pool.invoke per level, same pool size for both
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class FusedTreeBenchmark {
+    @Param({"16", "20", "24"})
+    int leavesLog2;
+
+    @Param({"POW2", "ODD"})
+    String shape;
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    int parallelism;
+
+    @Param({"1024", "4096", "16384"})
+    int blockLeaves;
+
+    byte[] hashes;
+    int leafCount;
+    ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        leafCount = BenchmarkData.leafCount(leavesLog2, shape);
+        byte[][] data = BenchmarkData.chunks(leafCount, 8);
+        hashes = BenchmarkData.flatten(MerkleTree.hashLeaves(data, MerkleHasher.SHA_256), 32);
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] fused() {
+        return FusedMerkleTree.genMerkleRootFromHash(hashes, leafCount, blockLeaves, MerkleHasher.SHA_256, pool);
+    }
+
+    // threshold in child nodes, so leaf tasks cover the same number of leaves as a block
+    @Benchmark
+    public byte[] perLevel() {
+        return ParallelMerkleTree.genMerkleRootFromHash(hashes, leafCount, blockLeaves, MerkleHasher.SHA_256, pool);
+    }
+}
@@ -0,0 +1,43 @@
+package com.cloud.merkle;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HasherBenchmark {
+    @Param({"SHA-256", "SHA-512/256", "SHA3-256", "BLAKE2b-256"})
+    String algorithm;
+
+    MerkleHasher hasher;
+    byte[] leaf;
+    byte[] left;
+    byte[] right;
+    byte[] out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        hasher = MerkleHasher.of(algorithm);
+        leaf = BenchmarkData.chunks(1, 8)[0];
+        left = hasher.hashLeaf(leaf);
+        right = hasher.hashLeaf(left);
+        out = new byte[hasher.digestLength()];
+    }
+
+    @Benchmark
+    public byte[] hashLeaf() {
+        hasher.hashLeaf(leaf, 0, leaf.length, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] hashNode() {
+        hasher.hashNode(left, right, out);
+        return out;
+    }
+}
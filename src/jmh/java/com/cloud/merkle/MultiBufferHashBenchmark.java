@@ -0,0 +1,64 @@
+package com.cloud.merkle;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// the 8-byte leaves Orchestrator sends and the 64-byte node merges above them, one message at a time through
+// MessageDigest (DIGEST) against VectorSha256.LANES messages in lockstep (VECTOR); VECTOR needs the vector profile,
+// mvn -P benchmark,vector compile exec:exec@jmh
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class MultiBufferHashBenchmark {
+    @Param({"16", "20"})
+    int leavesLog2;
+
+    @Param({"DIGEST", "VECTOR"})
+    String engine;
+
+    MerkleHasher hasher;
+    byte[][] chunks;
+    byte[] flatChunks;
+    byte[] leaves;
+    byte[] parents;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // SHA_256 stays a plain DigestMerkleHasher unless VectorSha256Hasher is built and its lanes are usable
+        if (engine.equals("VECTOR") && MerkleHasher.SHA_256.getClass() == DigestMerkleHasher.class) {
+            throw new IllegalStateException("Vector hasher not available, build with -P vector and run with "
+                    + "--add-modules jdk.incubator.vector");
+        }
+        hasher = engine.equals("VECTOR") ? MerkleHasher.SHA_256 : new DigestMerkleHasher(DigestProvider.SHA_256);
+        int count = 1 << leavesLog2;
+        chunks = BenchmarkData.chunks(count, 8);
+        flatChunks = new byte[count * 8];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(chunks[i], 0, flatChunks, i * 8, 8);
+        }
+        leaves = LambdaWorker.hashDataFlat(chunks, hasher);
+        parents = new byte[leaves.length / 2];
+    }
+
+    @Benchmark
+    public byte[] hashLeaves() {
+        hasher.hashLeaves(flatChunks, 0, 8, chunks.length, leaves, 0);
+        return leaves;
+    }
+
+    @Benchmark
+    public byte[] hashNodes() {
+        hasher.hashNodes(leaves, 0, chunks.length / 2, parents, 0);
+        return parents;
+    }
+
+    // leaf hashing and every level, as a worker computes its sub-root
+    @Benchmark
+    public byte[] genMerkleRootFromRaw() {
+        return MerkleTree.genMerkleRootFromRaw(chunks, hasher);
+    }
+}
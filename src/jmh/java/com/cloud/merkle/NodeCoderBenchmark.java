@@ -0,0 +1,165 @@
+package com.cloud.merkle;
+
+import com.cloud.merkle.DataFlowPipeline.Node;
+import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.util.common.ElementByteSizeObserver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// bytes and time per shuffled Node with Java serialization (JAVA) against NodeCoder (NODE), and a whole
+// MerkleTreeTransform run on the DirectRunner, which encodes every element it passes between stages
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class NodeCoderBenchmark {
+    @Param({"16", "18"})
+    int leavesLog2;
+
+    @Param({"JAVA", "NODE"})
+    String coder;
+
+    List<Node> leaves;
+    MerkleTreeTransform transform;
+    Coder<Node> nodeCoder;
+
+    // encoded bytes and runs per iteration, reported next to the time; bytes per run is encodedBytes / runs
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Shuffle {
+        public long encodedBytes;
+        public long runs;
+    }
+
+    // counts what the wrapped coder writes; the DirectRunner clones coders, so the count is static
+    public static class CountingCoder<T> extends CustomCoder<T> {
+        static final LongAdder BYTES = new LongAdder();
+
+        private final Coder<T> coder;
+
+        public CountingCoder(Coder<T> coder) {
+            this.coder = coder;
+        }
+
+        @Override
+        public void encode(T value, OutputStream out) throws IOException {
+            long[] count = new long[1];
+            coder.encode(value, new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    count[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    count[0] += len;
+                }
+            });
+            BYTES.add(count[0]);
+        }
+
+        @Override
+        public T decode(InputStream in) throws IOException {
+            return coder.decode(in);
+        }
+
+        @Override
+        public void verifyDeterministic() throws NonDeterministicException {
+            coder.verifyDeterministic();
+        }
+
+        @Override
+        public boolean consistentWithEquals() {
+            return coder.consistentWithEquals();
+        }
+
+        @Override
+        public Object structuralValue(T value) {
+            return coder.structuralValue(value);
+        }
+
+        @Override
+        public boolean isRegisterByteSizeObserverCheap(T value) {
+            return coder.isRegisterByteSizeObserverCheap(value);
+        }
+
+        @Override
+        public void registerByteSizeObserver(T value, ElementByteSizeObserver observer) throws Exception {
+            coder.registerByteSizeObserver(value, observer);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[][] data = BenchmarkData.chunks(1 << leavesLog2, 8);
+        byte[][] hashes = MerkleTree.hashLeaves(data, MerkleHasher.SHA_256);
+        leaves = new ArrayList<>(hashes.length);
+        for (int i = 0; i < hashes.length; i++) {
+            Node leaf = new Node();
+            leaf.seq = i;
+            leaf.data = hashes[i];
+            leaves.add(leaf);
+        }
+        // every Node and Subtree the DirectRunner encodes between stages goes through a CountingCoder
+        transform = new MerkleTreeTransform(MerkleHasher.SHA_256.name(), 1024, leaves.size()) {
+            @Override
+            public Coder<Node> nodeCoder() {
+                return new CountingCoder<>(super.nodeCoder());
+            }
+
+            @Override
+            public Coder<MerkleTreeTransform.Subtree> accumulatorCoder() {
+                return new CountingCoder<>(super.accumulatorCoder());
+            }
+        };
+        if (coder.equals("JAVA")) {
+            transform.withJavaSerialization();
+        }
+        nodeCoder = transform.nodeCoder();
+    }
+
+    @Benchmark
+    public void encodeDecode(Shuffle shuffle, Blackhole blackhole) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Node leaf : leaves) {
+            nodeCoder.encode(leaf, out);
+        }
+        byte[] encoded = out.toByteArray();
+        shuffle.encodedBytes += encoded.length;
+        shuffle.runs++;
+        ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+        for (int i = 0; i < leaves.size(); i++) {
+            blackhole.consume(nodeCoder.decode(in));
+        }
+    }
+
+    @Benchmark
+    public void directRunner(Shuffle shuffle) {
+        long before = CountingCoder.BYTES.sum();
+        Pipeline pipeline = Pipeline.create(PipelineOptionsFactory.fromArgs().create());
+        pipeline.apply("Leaves", Create.of(leaves).withCoder(nodeCoder))
+                .apply("Merkle Tree", transform);
+        pipeline.run().waitUntilFinish();
+        shuffle.encodedBytes += CountingCoder.BYTES.sum() - before;
+        shuffle.runs++;
+    }
+}
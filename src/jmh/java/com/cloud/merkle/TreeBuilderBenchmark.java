@@ -0,0 +1,42 @@
+package com.cloud.merkle;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class TreeBuilderBenchmark {
+    @Param({"10", "12", "14", "16", "18", "20", "22", "24"})
+    int leavesLog2;
+
+    @Param({"POW2", "ODD"})
+    String shape;
+
+    byte[][] data;
+    byte[][] hashes;
+    byte[] flatHashes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = BenchmarkData.chunks(BenchmarkData.leafCount(leavesLog2, shape), 8);
+        hashes = MerkleTree.hashLeaves(data, MerkleHasher.SHA_256);
+        flatHashes = BenchmarkData.flatten(hashes, MerkleHasher.SHA_256.digestLength());
+        BenchmarkData.requireReferenceRoot(hashes, standardFromRaw(), "standardFromRaw");
+        BenchmarkData.requireReferenceRoot(hashes, flatFromHash(), "flatFromHash");
+    }
+
+    @Benchmark
+    public byte[] standardFromRaw() {
+        return MerkleTree.genMerkleRootFromRaw(data);
+    }
+
+    @Benchmark
+    public byte[] flatFromHash() {
+        return MerkleTree.generateFlatMerkleTree(flatHashes, hashes.length, MerkleHasher.SHA_256).getRoot();
+    }
+}
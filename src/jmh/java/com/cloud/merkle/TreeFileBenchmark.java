@@ -0,0 +1,61 @@
+package com.cloud.merkle;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// cost of reopening a persisted tree and serving proofs from it, against proofs from the tree in memory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class TreeFileBenchmark {
+    @Param({"16", "20", "24"})
+    int leavesLog2;
+
+    Path file;
+    FlatMerkleTree memory;
+    MappedMerkleTree mapped;
+    SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int leafCount = 1 << leavesLog2;
+        byte[][] data = BenchmarkData.chunks(leafCount, 8);
+        byte[] leaves = BenchmarkData.flatten(MerkleTree.hashLeaves(data, MerkleHasher.SHA_256), 32);
+        file = Files.createTempFile("tree", ".mktf");
+        MerkleTreeFile.build(file, leaves, leafCount, MerkleHasher.SHA_256);
+        memory = MerkleTree.generateFlatMerkleTree(leaves, leafCount, MerkleHasher.SHA_256);
+        mapped = MappedMerkleTree.open(file);
+        random = new SplittableRandom(7);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mapped.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] openAndReadRoot() throws IOException {
+        try (MappedMerkleTree tree = MappedMerkleTree.open(file)) {
+            return tree.getRoot();
+        }
+    }
+
+    @Benchmark
+    public byte[][] mappedProof() {
+        return mapped.generateMerkleProof(random.nextInt(mapped.leafCount()));
+    }
+
+    @Benchmark
+    public byte[][] memoryProof() {
+        return MerkleTree.generateMerkleProof(random.nextInt(memory.leafCount()), memory);
+    }
+}
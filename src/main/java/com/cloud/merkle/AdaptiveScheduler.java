@@ -0,0 +1,122 @@
+package com.cloud.merkle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// picks power-of-two slice sizes from a latency model fitted to completed calls, latency = overhead + leaves * perLeaf;
+// the model is kept across runs, so a scheduler that is reused converges on the cheapest slice size
+public class AdaptiveScheduler {
+    private final int minLog2;
+    private final int maxLog2;
+    private final int concurrency;
+    private final int probeCalls;
+    // least squares sums over (leaves, nanos)
+    private long samples;
+    private double sumX;
+    private double sumY;
+    private double sumXX;
+    private double sumXY;
+    private int probes;
+    private final List<Decision> decisions = new ArrayList<>();
+
+    public static class Decision {
+        public final int position;
+        public final int take;
+        public final String reason;
+        public final double overheadMillis;
+        public final double perLeafNanos;
+
+        Decision(int position, int take, String reason, double overheadMillis, double perLeafNanos) {
+            this.position = position;
+            this.take = take;
+            this.reason = reason;
+            this.overheadMillis = overheadMillis;
+            this.perLeafNanos = perLeafNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("@%d take %d (%s, overhead %.1f ms, %.1f ns/leaf)",
+                    position, take, reason, overheadMillis, perLeafNanos);
+        }
+    }
+
+    // slices between 2^minLog2 and 2^maxLog2 leaves, probing until probeCalls calls completed
+    public AdaptiveScheduler(int minLog2, int maxLog2, int concurrency, int probeCalls) {
+        if (minLog2 < 0 || maxLog2 > 30 || minLog2 > maxLog2) {
+            throw new IllegalArgumentException("Bad slice range 2^" + minLog2 + "..2^" + maxLog2);
+        }
+        this.minLog2 = minLog2;
+        this.maxLog2 = maxLog2;
+        this.concurrency = Math.max(1, concurrency);
+        this.probeCalls = Math.max(2, probeCalls);
+    }
+
+    public synchronized void record(int leaves, long nanos) {
+        samples++;
+        sumX += leaves;
+        sumY += nanos;
+        sumXX += (double) leaves * leaves;
+        sumXY += (double) leaves * nanos;
+    }
+
+    // leaves for the slice starting at position, a power of two aligned to position unless it is the tail
+    public synchronized int nextSlice(int position, int remaining) {
+        int aligned = position == 0 ? 1 << maxLog2 : Integer.lowestOneBit(position);
+        double perLeaf = perLeafNanos();
+        double overhead = overheadNanos();
+        int log2;
+        String reason;
+        if (samples < probeCalls || perLeaf <= 0) {
+            // cycle through the sizes, the fit needs calls of different lengths
+            log2 = minLog2 + probes++ % (maxLog2 - minLog2 + 1);
+            reason = "probe";
+        } else {
+            log2 = minLog2;
+            double best = Double.MAX_VALUE;
+            for (int h = minLog2; h <= maxLog2; h++) {
+                long size = 1L << h;
+                // calls run in waves of concurrency, each wave as slow as one call
+                long waves = (remaining + size * concurrency - 1) / (size * concurrency);
+                double cost = waves * (overhead + size * perLeaf);
+                if (cost < best) {
+                    best = cost;
+                    log2 = h;
+                }
+            }
+            reason = "model";
+        }
+        int size = 1 << log2;
+        if (size > aligned) {
+            size = aligned;
+            reason += ", aligned down";
+        }
+        int take = Math.min(size, remaining);
+        decisions.add(new Decision(position, take, reason, overhead / 1e6, perLeaf));
+        return take;
+    }
+
+    public synchronized double perLeafNanos() {
+        double denominator = samples * sumXX - sumX * sumX;
+        if (samples < 2 || denominator == 0) {
+            return 0;
+        }
+        return (samples * sumXY - sumX * sumY) / denominator;
+    }
+
+    public synchronized double overheadNanos() {
+        if (samples == 0) {
+            return 0;
+        }
+        return Math.max(0, (sumY - perLeafNanos() * sumX) / samples);
+    }
+
+    public synchronized List<Decision> decisions() {
+        return new ArrayList<>(decisions);
+    }
+
+    public synchronized String summary() {
+        return String.format("%d calls observed, overhead %.1f ms, %.1f ns/leaf, %d decisions",
+                samples, overheadNanos() / 1e6, perLeafNanos(), decisions.size());
+    }
+}
@@ -0,0 +1,94 @@
+package com.cloud.merkle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// like SubRootAccumulator, but each arrival is the root of an aligned subtree of any height over leafCount leaves:
+// node (level, index) covers leaves [index << level, (index + 1) << level), cut at leafCount
+public class AlignedRootAccumulator {
+    private final MerkleHasher hasher;
+    private final int hashLength;
+    private final int[] sizes;
+    // nodes still waiting for their sibling, keyed by level << 32 | index
+    private final Map<Long, byte[]> pending = new HashMap<>();
+    private final Set<Long> delivered = new HashSet<>();
+    private final CompletableFuture<byte[]> root = new CompletableFuture<>();
+
+    public AlignedRootAccumulator(int leafCount, MerkleHasher hasher) {
+        if (leafCount < 1) {
+            throw new IllegalArgumentException("Need at least one leaf");
+        }
+        this.hasher = hasher;
+        this.hashLength = hasher.digestLength();
+        this.sizes = new int[FlatMerkleTree.levelCount(leafCount)];
+        int size = leafCount;
+        for (int l = 0; l < sizes.length; l++) {
+            sizes[l] = size;
+            size = (size + 1) / 2;
+        }
+    }
+
+    // level whose node covers count leaves starting at an aligned position, count may be a short tail
+    public static int levelFor(int count) {
+        return 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+
+    // returns false for a node that was already delivered, the first one wins
+    public synchronized boolean add(int level, int index, byte[] subRoot) {
+        if (level < 0 || level >= sizes.length || index < 0 || index >= sizes[level]) {
+            throw new IndexOutOfBoundsException("Node " + index + " of level " + level + " out of range");
+        }
+        if (!delivered.add(key(level, index))) {
+            return false;
+        }
+        byte[] node = Arrays.copyOf(subRoot, hashLength);
+        // hash upwards while the sibling is known, the last node of an odd level is paired with itself
+        while (level + 1 < sizes.length) {
+            int sibling = index ^ 1;
+            byte[] other = node;
+            if (sibling < sizes[level]) {
+                other = pending.remove(key(level, sibling));
+                if (other == null) {
+                    pending.put(key(level, index), node);
+                    return true;
+                }
+            }
+            byte[] parent = new byte[hashLength];
+            if ((index & 1) == 0) {
+                hasher.hashNode(node, other, parent);
+            } else {
+                hasher.hashNode(other, node, parent);
+            }
+            node = parent;
+            index >>= 1;
+            level++;
+        }
+        root.complete(node);
+        return true;
+    }
+
+    public void fail(Throwable cause) {
+        root.completeExceptionally(cause);
+    }
+
+    public boolean isFailed() {
+        return root.isCompletedExceptionally();
+    }
+
+    public boolean isComplete() {
+        return root.isDone() && !root.isCompletedExceptionally();
+    }
+
+    // blocks until the leaves are fully covered, rethrows the failure passed to fail
+    public byte[] awaitRoot() {
+        return root.join();
+    }
+
+    private static long key(int level, int index) {
+        return (long) level << 32 | index;
+    }
+}
@@ -0,0 +1,129 @@
+package com.cloud.merkle;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// compact binary calls between Orchestrator and LambdaWorker, all integers big-endian
+//   request:  "MKRQ" | version u8 | algorithm length u8 | range count i32 | algorithm (ASCII)
+//             then per range: file name length u16 | file name (UTF-8) | chunkSize i32 | skip i32 | take i32
+//   response: "MKRS" | version u8 | hash length u8 | root count i32 | roots back to back, in range order
+public class BatchProtocol {
+    public static final String CONTENT_TYPE = "application/octet-stream";
+    static final int REQUEST_MAGIC = 0x4D4B5251;
+    static final int RESPONSE_MAGIC = 0x4D4B5253;
+    static final int VERSION = 1;
+
+    // true for CONTENT_TYPE with any parameters and in any case, e.g. "Application/Octet-Stream; charset=binary"
+    public static boolean isBatch(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        String mediaType = (end < 0 ? contentType : contentType.substring(0, end)).trim();
+        return CONTENT_TYPE.equalsIgnoreCase(mediaType);
+    }
+
+    public static class Request {
+        public final String algorithm;
+        public final List<EventPayload> ranges;
+
+        public Request(String algorithm, List<EventPayload> ranges) {
+            this.algorithm = algorithm;
+            this.ranges = ranges;
+        }
+    }
+
+    public static byte[] encodeRequest(String algorithm, List<EventPayload> ranges) {
+        byte[] name = algorithm.getBytes(StandardCharsets.US_ASCII);
+        if (name.length > 255) {
+            throw new IllegalArgumentException("Algorithm name too long: " + algorithm);
+        }
+        byte[][] fileNames = new byte[ranges.size()][];
+        int size = 10 + name.length;
+        for (int i = 0; i < fileNames.length; i++) {
+            fileNames[i] = ranges.get(i).fileName.getBytes(StandardCharsets.UTF_8);
+            if (fileNames[i].length > 0xFFFF) {
+                throw new IllegalArgumentException("File name too long: " + ranges.get(i).fileName);
+            }
+            size += 14 + fileNames[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(REQUEST_MAGIC).put((byte) VERSION).put((byte) name.length).putInt(ranges.size()).put(name);
+        for (int i = 0; i < fileNames.length; i++) {
+            EventPayload range = ranges.get(i);
+            buffer.putShort((short) fileNames[i].length).put(fileNames[i])
+                    .putInt(range.chunkSize).putInt(range.skip).putInt(range.take);
+        }
+        return buffer.array();
+    }
+
+    public static Request decodeRequest(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            checkHeader(buffer, REQUEST_MAGIC);
+            byte[] name = new byte[buffer.get() & 0xFF];
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 14) {
+                throw new IllegalArgumentException("Bad range count " + count);
+            }
+            buffer.get(name);
+            String algorithm = new String(name, StandardCharsets.US_ASCII);
+            List<EventPayload> ranges = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] fileName = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(fileName);
+                EventPayload range = new EventPayload();
+                range.fileName = new String(fileName, StandardCharsets.UTF_8);
+                range.chunkSize = buffer.getInt();
+                range.skip = buffer.getInt();
+                range.take = buffer.getInt();
+                range.algorithm = algorithm;
+                ranges.add(range);
+            }
+            return new Request(algorithm, ranges);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated batch request", e);
+        }
+    }
+
+    public static byte[] encodeResponse(byte[][] roots, int hashLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(10 + roots.length * hashLength);
+        buffer.putInt(RESPONSE_MAGIC).put((byte) VERSION).put((byte) hashLength).putInt(roots.length);
+        for (byte[] root : roots) {
+            buffer.put(root, 0, hashLength);
+        }
+        return buffer.array();
+    }
+
+    public static byte[][] decodeResponse(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            checkHeader(buffer, RESPONSE_MAGIC);
+            int hashLength = buffer.get() & 0xFF;
+            int count = buffer.getInt();
+            if (count < 0 || (long) count * hashLength != buffer.remaining()) {
+                throw new IllegalArgumentException("Expected " + count + " roots of " + hashLength + " bytes");
+            }
+            byte[][] roots = new byte[count][hashLength];
+            for (byte[] root : roots) {
+                buffer.get(root);
+            }
+            return roots;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated batch response", e);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer buffer, int magic) {
+        if (buffer.getInt() != magic) {
+            throw new IllegalArgumentException("Not a batch message");
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported batch protocol version " + version);
+        }
+    }
+}
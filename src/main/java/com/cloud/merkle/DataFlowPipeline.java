@@ -1,30 +1,43 @@
 package com.cloud.merkle;
 
 import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.io.FileIO;
 import org.apache.beam.sdk.io.TextIO;
+import org.apache.beam.sdk.io.range.OffsetRange;
+import org.apache.beam.sdk.options.Description;
+import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.options.Validation;
 import org.apache.beam.sdk.transforms.DoFn;
-import org.apache.beam.sdk.transforms.GroupByKey;
-import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.splittabledofn.RestrictionTracker;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Comparator;
-import java.util.stream.StreamSupport;
+import java.util.Arrays;
 
 public class DataFlowPipeline {
     static Logger logger = LoggerFactory.getLogger(DataFlowPipeline.class);
+    // nodes per group, a power of two so each group is an aligned subtree of the canonical tree
+    static final int GROUP_SIZE = 1024;
 
     public static class Node implements Serializable {
         int seq;
         byte[] data;
+        // height of the subtree data is the root of, 0 for a leaf
+        int height;
 
         int getSeq() {return seq;}
         byte[] getData() {return data;}
@@ -42,57 +55,262 @@ public class DataFlowPipeline {
     }
 
     public static class HashRawFn extends DoFn<Node, Node> {
+        private final String algorithm;
+        private transient MerkleHasher hasher;
+
+        public HashRawFn() {
+            this(MerkleHasher.SHA_256.name());
+        }
+
+        public HashRawFn(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        @Setup
+        public void setup() {
+            hasher = MerkleHasher.of(algorithm);
+        }
+
         @ProcessElement
         public void processElement(ProcessContext c) {
-            try {
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                Node hashed = new Node();
-                hashed.data = md.digest(c.element().data);
-                c.output(hashed);
-            } catch (NoSuchAlgorithmException e) {
+            Node hashed = new Node();
+            hashed.seq = c.element().seq;
+            hashed.data = hasher.hashLeaf(c.element().data);
+            c.output(hashed);
+        }
+    }
+
+    // FileToByteFn, HashRawFn and ToKV in one step: seq is read without a regex, the line is encoded into a buffer
+    // reused across elements and hashed in place, and the keyed leaf goes straight to MerkleTreeTransform.keyed()
+    public static class ParseHashFn extends DoFn<String, KV<Integer, Node>> {
+        private final String algorithm;
+        private final int groupSize;
+        private transient MerkleHasher hasher;
+        private transient CharsetEncoder encoder;
+        private transient ByteBuffer encoded;
+
+        public ParseHashFn() {
+            this(MerkleHasher.SHA_256.name(), GROUP_SIZE);
+        }
+
+        public ParseHashFn(String algorithm, int groupSize) {
+            this.algorithm = algorithm;
+            this.groupSize = groupSize;
+        }
+
+        @Setup
+        public void setup() {
+            hasher = MerkleHasher.of(algorithm);
+            // replaces malformed input with '?' like String.getBytes
+            encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoded = ByteBuffer.allocate(256);
+        }
+
+        @StartBundle
+        public void startBundle() {
+            // the hasher's digest and the buffer live as long as the DoFn, a bundle only needs a clean encoder
+            encoder.reset();
+        }
+
+        @ProcessElement
+        public void processElement(@Element String line, OutputReceiver<KV<Integer, Node>> out) {
+            Node leaf = new Node();
+            leaf.seq = parseSeq(line);
+            leaf.data = new byte[hasher.digestLength()];
+            hasher.hashLeaf(encode(line), leaf.data, 0);
+            out.output(KV.of(leaf.seq / groupSize, leaf));
+        }
 
+        // the number before the first ',' or the whole line, as Integer.parseInt(line.split(",")[0])
+        static int parseSeq(String line) {
+            int end = line.indexOf(',');
+            if (end < 0) {
+                end = line.length();
+            }
+            int i = 0;
+            boolean negative = false;
+            if (end > 0 && (line.charAt(0) == '-' || line.charAt(0) == '+')) {
+                negative = line.charAt(0) == '-';
+                i = 1;
+            }
+            if (i == end) {
+                throw new NumberFormatException("No sequence number in \"" + line + "\"");
             }
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = line.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Bad sequence number in \"" + line + "\"");
+                }
+                value = value * 10 + digit;
+                if (value > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE)) {
+                    throw new NumberFormatException("Sequence number out of range in \"" + line + "\"");
+                }
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        // UTF-8 bytes of line in the reused buffer, ASCII lines are copied without the encoder
+        private ByteBuffer encode(String line) {
+            int length = line.length();
+            if (encoded.capacity() < 3 * length) {
+                encoded = ByteBuffer.allocate(Math.max(3 * length, 2 * encoded.capacity()));
+            }
+            byte[] bytes = encoded.array();
+            int i = 0;
+            while (i < length && line.charAt(i) < 0x80) {
+                bytes[i] = (byte) line.charAt(i);
+                i++;
+            }
+            encoded.clear();
+            if (i == length) {
+                encoded.limit(length);
+                return encoded;
+            }
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(line), encoded, true);
+            encoder.flush(encoded);
+            return encoded.flip();
         }
     }
 
-    public static class ToKV extends DoFn<Node, KV<Integer, Node>> {
+    // bulk variant for files of fixed-width records like LambdaWorker reads: record i is leaf seq i, the file is
+    // split into ranges of records, each read in large blocks and hashed straight out of the read buffer
+    @DoFn.BoundedPerElement
+    public static class FixedWidthHashFn extends DoFn<FileIO.ReadableFile, KV<Integer, Node>> {
+        private static final int BLOCK_RECORDS = 8192;
+
+        private final String algorithm;
+        private final int chunkSize;
+        private final int groupSize;
+        private final long recordsPerSplit;
+        private transient MerkleHasher hasher;
+        private transient ByteBuffer block;
+        private transient byte[] hashes;
+
+        public FixedWidthHashFn(String algorithm, int chunkSize, int groupSize, long recordsPerSplit) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("Chunk size must be positive");
+            }
+            this.algorithm = algorithm;
+            this.chunkSize = chunkSize;
+            this.groupSize = groupSize;
+            this.recordsPerSplit = recordsPerSplit;
+        }
+
+        @Setup
+        public void setup() {
+            hasher = MerkleHasher.of(algorithm);
+            block = ByteBuffer.allocate(BLOCK_RECORDS * chunkSize);
+            hashes = new byte[BLOCK_RECORDS * hasher.digestLength()];
+        }
+
+        // a trailing partial record is not a leaf, as in MappedChunkReader
+        @GetInitialRestriction
+        public OffsetRange initialRestriction(@Element FileIO.ReadableFile file) {
+            return new OffsetRange(0, file.getMetadata().sizeBytes() / chunkSize);
+        }
+
+        @SplitRestriction
+        public void splitRestriction(@Restriction OffsetRange range, OutputReceiver<OffsetRange> out) {
+            for (OffsetRange part : range.split(recordsPerSplit, recordsPerSplit)) {
+                out.output(part);
+            }
+        }
+
         @ProcessElement
-        public void processElement(ProcessContext c) {
-            Node node = c.element();
-            c.output(KV.of(node.seq / 1024, node));
+        public void processElement(@Element FileIO.ReadableFile file, RestrictionTracker<OffsetRange, Long> tracker,
+                                   OutputReceiver<KV<Integer, Node>> out) throws IOException {
+            long record = tracker.currentRestriction().getFrom();
+            try (SeekableByteChannel channel = file.openSeekable()) {
+                channel.position(record * chunkSize);
+                while (true) {
+                    long end = tracker.currentRestriction().getTo();
+                    if (record >= end) {
+                        tracker.tryClaim(record);
+                        return;
+                    }
+                    int records = (int) Math.min(BLOCK_RECORDS, end - record);
+                    block.clear().limit(records * chunkSize);
+                    while (block.hasRemaining() && channel.read(block) >= 0) {
+                        // fill the block, a short read only happens at the end of the file
+                    }
+                    block.flip();
+                    int whole = block.remaining() / chunkSize;
+                    // the whole block in one bulk call, records lost to a split are hashed for nothing
+                    int hashLength = hasher.digestLength();
+                    hasher.hashLeaves(block, chunkSize, whole, hashes, 0);
+                    for (int i = 0; i < whole; i++, record++) {
+                        if (!tracker.tryClaim(record)) {
+                            return;
+                        }
+                        Node leaf = new Node();
+                        leaf.seq = Math.toIntExact(record);
+                        leaf.data = Arrays.copyOfRange(hashes, i * hashLength, (i + 1) * hashLength);
+                        out.output(KV.of(leaf.seq / groupSize, leaf));
+                    }
+                    if (whole < records) {
+                        throw new IOException("File ended at record " + record + " of " + end);
+                    }
+                }
+            }
         }
     }
 
-    public static class ToMerkle extends DoFn<KV<Integer, Iterable<Node>>, Node> {
+    // leaves of the single file matching filePattern, keyed for MerkleTreeTransform.keyed() with the same groupSize
+    public static PCollection<KV<Integer, Node>> readFixedWidth(Pipeline pipeline, String filePattern, int chunkSize,
+                                                               String algorithm, int groupSize) {
+        return pipeline.apply("Match File", FileIO.match().filepattern(filePattern))
+                .apply("Read Matches", FileIO.readMatches())
+                .apply("Hash Records", ParDo.of(new FixedWidthHashFn(algorithm, chunkSize, groupSize, 1 << 20)))
+                .setCoder(KvCoder.of(VarIntCoder.of(), NodeCoder.of()));
+    }
+
+    public static class ToKV extends DoFn<Node, KV<Integer, Node>> {
+        private final int groupSize;
+
+        public ToKV() {
+            this(GROUP_SIZE);
+        }
+
+        public ToKV(int groupSize) {
+            this.groupSize = groupSize;
+        }
+
         @ProcessElement
         public void processElement(ProcessContext c) {
-            byte[][] data = StreamSupport.stream(c.element().getValue().spliterator(), false)
-                    .sorted(Comparator.comparingInt(Node::getSeq))
-                    .map(Node::getData)
-                    .toArray(byte[][]::new);
-            byte[] root = RecursiveMerkleTree.genMerkleRootFromHash(data, 512);
-            Node res = new Node();
-            res.seq = c.element().getKey();
-            res.data = root;
-            c.output(res);
+            Node node = c.element();
+            c.output(KV.of(node.seq / groupSize, node));
         }
     }
 
+    public interface Options extends PipelineOptions {
+        @Description("Upper bound on the number of input lines; the tree gets one level, and so one shuffle, per "
+                + "GROUP_SIZE-fold of it")
+        @Validation.Required
+        Long getExpectedLines();
+
+        void setExpectedLines(Long expectedLines);
+    }
+
     public static void main(String[] args) {
-        Pipeline pipeline = Pipeline.create(PipelineOptionsFactory.fromArgs(args).create());
+        Options options = PipelineOptionsFactory.fromArgs(args).withValidation().as(Options.class);
+        Pipeline pipeline = Pipeline.create(options);
+        // stages that infer their coder pick NodeCoder instead of Java serialization
+        pipeline.getCoderRegistry().registerCoderForClass(Node.class, NodeCoder.of());
 
         PCollection<String> lines = pipeline
                 .apply("Read File", TextIO.read()
                         .from("gs://run-sources-protean-music-381914-us-central1/data/standard/test?.txt")
                 );
-        PCollection<Node> byteLines = lines.apply("To Byte", ParDo.of(new FileToByteFn()));
-        PCollection<Node> hashLines = byteLines.apply("Hash Raw", ParDo.of(new HashRawFn()));
-        PCollection<KV<Integer, Node>> kvNodes = hashLines.apply("To KV", ParDo.of(new ToKV()));
-        PCollection<KV<Integer, Iterable<Node>>> chunks = kvNodes.apply("Group Chunk", GroupByKey.create());
-        PCollection<KV<Integer, Node>> mediators = chunks.apply("To Merkle", ParDo.of(new ToMerkle()))
-                .apply("To KV", ParDo.of(new ToKV()));
-        PCollection<KV<Integer, Iterable<Node>>> lastTree = mediators.apply("To Merkle Root", GroupByKey.create());
-        PCollection<Node> root = lastTree.apply("To Root", ParDo.of(new ToMerkle()));
+        MerkleTreeTransform tree = new MerkleTreeTransform(MerkleHasher.SHA_256.name(), GROUP_SIZE,
+                options.getExpectedLines());
+        PCollection<KV<Integer, Node>> leaves = lines
+                .apply("Parse And Hash", ParDo.of(new ParseHashFn(MerkleHasher.SHA_256.name(), GROUP_SIZE)))
+                .setCoder(tree.keyedCoder());
+        PCollection<Node> root = leaves.apply("Merkle Tree", tree.keyed());
         root.apply("Log", ParDo.of(new DoFn<Node, String>() {
             @ProcessElement
             public void processElement(ProcessContext c) {
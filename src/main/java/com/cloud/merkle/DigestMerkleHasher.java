@@ -0,0 +1,69 @@
+package com.cloud.merkle;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DigestMerkleHasher implements MerkleHasher {
+    // one hasher, and so one set of per-thread digests, per algorithm name looked up by MerkleHasher.of
+    private static final ConcurrentHashMap<String, DigestMerkleHasher> BY_NAME = new ConcurrentHashMap<>();
+
+    private final String algorithm;
+    private final int digestLength;
+    private final ThreadLocal<MessageDigest> digests;
+
+    public DigestMerkleHasher(String algorithm) {
+        this.algorithm = algorithm;
+        this.digestLength = DigestProvider.newDigest(algorithm).getDigestLength();
+        this.digests = ThreadLocal.withInitial(() -> DigestProvider.newDigest(algorithm));
+    }
+
+    // VectorSha256Hasher lives in src/vector/java and is only compiled by the vector profile, so the core build
+    // never needs jdk.incubator.vector; it is looked up by name and falls back to MessageDigest itself
+    static MerkleHasher sha256() {
+        try {
+            return (MerkleHasher) Class.forName("com.cloud.merkle.VectorSha256Hasher").getMethod("sha256").invoke(null);
+        } catch (ClassNotFoundException e) {
+            return new DigestMerkleHasher(DigestProvider.SHA_256);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException("Cannot load VectorSha256Hasher", e);
+        }
+    }
+
+    // names are matched case-insensitively, as MessageDigest.getInstance does
+    static DigestMerkleHasher of(String algorithm) {
+        return BY_NAME.computeIfAbsent(algorithm.toUpperCase(Locale.ROOT), key -> new DigestMerkleHasher(algorithm));
+    }
+
+    @Override
+    public String name() {
+        return algorithm;
+    }
+
+    @Override
+    public int digestLength() {
+        return digestLength;
+    }
+
+    @Override
+    public void hashLeaf(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        HashKernel.hash(digest(), data, offset, length, out, outOffset);
+    }
+
+    @Override
+    public void hashLeaf(ByteBuffer data, byte[] out, int outOffset) {
+        HashKernel.hash(digest(), data, out, outOffset);
+    }
+
+    @Override
+    public void hashNode(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] out, int outOffset) {
+        HashKernel.hashPair(digest(), left, leftOffset, right, rightOffset, out, outOffset);
+    }
+
+    private MessageDigest digest() {
+        MessageDigest md = digests.get();
+        md.reset();
+        return md;
+    }
+}
@@ -0,0 +1,25 @@
+package com.cloud.merkle;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class DigestProvider {
+    public static final String SHA_256 = "SHA-256";
+
+    // one digest per thread, a borrowed digest must not be held across a call that borrows again
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> newDigest(SHA_256));
+
+    public static MessageDigest sha256() {
+        MessageDigest md = sha256.get();
+        md.reset();
+        return md;
+    }
+
+    public static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not supported", e);
+        }
+    }
+}
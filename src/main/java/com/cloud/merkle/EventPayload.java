@@ -5,4 +5,5 @@ public class EventPayload {
     public int chunkSize;
     public int skip;
     public int take;
+    public String algorithm;
 }
@@ -0,0 +1,113 @@
+package com.cloud.merkle;
+
+import java.util.Arrays;
+
+public class FlatMerkleTree {
+    // levels[i] stores sizes[i] nodes back to back, node j at offset j * hashLength
+    final byte[][] levels;
+    final int[] sizes;
+    final int hashLength;
+    private LeafIndex leafIndex;
+
+    FlatMerkleTree(byte[][] levels, int[] sizes, int hashLength) {
+        this.levels = levels;
+        this.sizes = sizes;
+        this.hashLength = hashLength;
+    }
+
+    public int height() {
+        return levels.length;
+    }
+
+    public int hashLength() {
+        return hashLength;
+    }
+
+    public int leafCount() {
+        return sizes[0];
+    }
+
+    public int levelSize(int level) {
+        return sizes[level];
+    }
+
+    public byte[] level(int level) {
+        return levels[level];
+    }
+
+    public int offset(int index) {
+        return index * hashLength;
+    }
+
+    public byte[] getNode(int level, int index) {
+        byte[] node = new byte[hashLength];
+        copyNode(level, index, node, 0);
+        return node;
+    }
+
+    public void copyNode(int level, int index, byte[] dest, int destOffset) {
+        System.arraycopy(levels[level], offset(index), dest, destOffset, hashLength);
+    }
+
+    public byte[] getRoot() {
+        return getNode(levels.length - 1, 0);
+    }
+
+    // builds the O(1) leaf lookup used by indexOf and generateMerkleProof
+    public FlatMerkleTree withLeafIndex() {
+        if (leafIndex == null) {
+            leafIndex = new LeafIndex(this);
+        }
+        return this;
+    }
+
+    public boolean hasLeafIndex() {
+        return leafIndex != null;
+    }
+
+    // lowest position holding the hash, -1 if absent
+    public int indexOf(byte[] hash) {
+        if (leafIndex != null) {
+            return leafIndex.indexOf(hash);
+        }
+        byte[] leaves = levels[0];
+        for (int i = 0; i < sizes[0]; i++) {
+            int from = offset(i);
+            if (Arrays.equals(hash, 0, hash.length, leaves, from, from + hashLength)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int[] indicesOf(byte[] hash) {
+        return withLeafIndex().leafIndex.indicesOf(hash);
+    }
+
+    public byte[][][] toArray() {
+        byte[][][] tree = new byte[levels.length][][];
+        for (int i = 0; i < levels.length; i++) {
+            tree[i] = new byte[sizes[i]][];
+            for (int j = 0; j < sizes[i]; j++) {
+                tree[i][j] = getNode(i, j);
+            }
+        }
+        return tree;
+    }
+
+    static int levelCount(int leafCount) {
+        int n = 1;
+        for (int size = leafCount; size > 1; size = (size + 1) / 2) {
+            n++;
+        }
+        return n;
+    }
+
+    static byte[] allocateLevel(int nodes, int hashLength) {
+        long bytes = (long) nodes * hashLength;
+        if (bytes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Level of " + nodes + " nodes does not fit in a single array");
+        }
+        return new byte[(int) bytes];
+    }
+}
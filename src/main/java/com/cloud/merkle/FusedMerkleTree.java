@@ -0,0 +1,137 @@
+package com.cloud.merkle;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// each worker reduces whole blocks of leaves to their subtree roots, only the block roots are combined afterwards
+public class FusedMerkleTree {
+    // 4096 leaves of 32 bytes plus the first parent level stay within a typical L2
+    public static final int DEFAULT_BLOCK_LEAVES = 4096;
+
+    public static class BlockTask extends RecursiveAction {
+        private final byte[] leaves;
+        private final byte[][] rows;
+        private final int leafCount;
+        private final int blockLeaves;
+        private final byte[] roots;
+        private final int from;
+        private final int to;
+        private final MerkleHasher hasher;
+
+        BlockTask(byte[] leaves, byte[][] rows, int leafCount, int blockLeaves, byte[] roots, int from, int to,
+                  MerkleHasher hasher) {
+            this.leaves = leaves;
+            this.rows = rows;
+            this.leafCount = leafCount;
+            this.blockLeaves = blockLeaves;
+            this.roots = roots;
+            this.from = from;
+            this.to = to;
+            this.hasher = hasher;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BlockTask(leaves, rows, leafCount, blockLeaves, roots, from, mid, hasher),
+                        new BlockTask(leaves, rows, leafCount, blockLeaves, roots, mid, to, hasher));
+                return;
+            }
+            int hashLength = hasher.digestLength();
+            byte[] scratch = new byte[blockLeaves / 2 * hashLength];
+            int start = from * blockLeaves;
+            int size = Math.min(blockLeaves, leafCount - start);
+            int height = Integer.numberOfTrailingZeros(blockLeaves);
+            if (size == 1) {
+                // a single leaf only needs lifting, copy it so the loop below can pair it with itself
+                copyLeaf(start, scratch, 0, hashLength);
+            } else {
+                int parents = (size + 1) / 2;
+                for (int p = 0; p < parents; p++) {
+                    int left = start + 2 * p;
+                    // the last node of an odd level is paired with itself
+                    int right = 2 * p + 1 < size ? left + 1 : left;
+                    if (rows != null) {
+                        hasher.hashNode(rows[left], 0, rows[right], 0, scratch, p * hashLength);
+                    } else {
+                        hasher.hashNode(leaves, left * hashLength, leaves, right * hashLength, scratch, p * hashLength);
+                    }
+                }
+                size = parents;
+                height--;
+            }
+            // remaining levels in place, parent p never overwrites a child still to be read
+            while (height > 0) {
+                int parents = (size + 1) / 2;
+                for (int p = 0; p < parents; p++) {
+                    int left = 2 * p * hashLength;
+                    int right = 2 * p + 1 < size ? left + hashLength : left;
+                    hasher.hashNode(scratch, left, scratch, right, scratch, p * hashLength);
+                }
+                size = parents;
+                height--;
+            }
+            System.arraycopy(scratch, 0, roots, from * hashLength, hashLength);
+        }
+
+        private void copyLeaf(int index, byte[] dest, int destOffset, int hashLength) {
+            if (rows != null) {
+                System.arraycopy(rows[index], 0, dest, destOffset, hashLength);
+            } else {
+                System.arraycopy(leaves, index * hashLength, dest, destOffset, hashLength);
+            }
+        }
+    }
+
+    public static byte[] genMerkleRootFromHash(byte[][] hashes, MerkleHasher hasher) {
+        return genMerkleRoot(null, hashes, hashes.length, DEFAULT_BLOCK_LEAVES, hasher, ForkJoinPool.commonPool());
+    }
+
+    public static byte[] genMerkleRootFromHash(byte[] hashes, int leafCount, MerkleHasher hasher) {
+        return genMerkleRoot(hashes, null, leafCount, DEFAULT_BLOCK_LEAVES, hasher, ForkJoinPool.commonPool());
+    }
+
+    // blockLeaves must be a power of two
+    public static byte[] genMerkleRootFromHash(byte[] hashes, int leafCount, int blockLeaves, MerkleHasher hasher,
+                                               ForkJoinPool pool) {
+        return genMerkleRoot(hashes, null, leafCount, blockLeaves, hasher, pool);
+    }
+
+    private static byte[] genMerkleRoot(byte[] leaves, byte[][] rows, int leafCount, int blockLeaves,
+                                        MerkleHasher hasher, ForkJoinPool pool) {
+        if (leafCount < 1) {
+            throw new IllegalArgumentException("No leaves to hash");
+        }
+        if (blockLeaves < 2 || Integer.bitCount(blockLeaves) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two, got " + blockLeaves);
+        }
+        int hashLength = hasher.digestLength();
+        // a tree that fits in one block is not lifted to the block height
+        while (blockLeaves >= 2 * leafCount && blockLeaves > 2) {
+            blockLeaves >>= 1;
+        }
+        if (leafCount == 1) {
+            byte[] root = new byte[hashLength];
+            System.arraycopy(rows != null ? rows[0] : leaves, 0, root, 0, hashLength);
+            return root;
+        }
+        int blocks = (leafCount + blockLeaves - 1) / blockLeaves;
+        byte[] roots = FlatMerkleTree.allocateLevel(blocks, hashLength);
+        pool.invoke(new BlockTask(leaves, rows, leafCount, blockLeaves, roots, 0, blocks, hasher));
+        // only leafCount / blockLeaves roots are left, cheaper to hash serially than another barrier
+        int size = blocks;
+        while (size > 1) {
+            int parents = (size + 1) / 2;
+            for (int p = 0; p < parents; p++) {
+                int left = 2 * p * hashLength;
+                int right = 2 * p + 1 < size ? left + hashLength : left;
+                hasher.hashNode(roots, left, roots, right, roots, p * hashLength);
+            }
+            size = parents;
+        }
+        byte[] root = new byte[hashLength];
+        System.arraycopy(roots, 0, root, 0, hashLength);
+        return root;
+    }
+}
@@ -0,0 +1,40 @@
+package com.cloud.merkle;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+public class HashKernel {
+    // hash(left || right) written to out[outOffset..], nothing is allocated;
+    // out may alias either input since both are consumed before the digest is written
+    public static void hashPair(MessageDigest md, byte[] left, int leftOffset, byte[] right, int rightOffset,
+                                byte[] out, int outOffset) {
+        int length = md.getDigestLength();
+        md.update(left, leftOffset, length);
+        md.update(right, rightOffset, length);
+        digest(md, out, outOffset);
+    }
+
+    public static void hashPair(MessageDigest md, byte[] left, byte[] right, byte[] out) {
+        hashPair(md, left, 0, right, 0, out, 0);
+    }
+
+    public static void hash(MessageDigest md, byte[] data, int offset, int length, byte[] out, int outOffset) {
+        md.update(data, offset, length);
+        digest(md, out, outOffset);
+    }
+
+    // consumes data.remaining() bytes, direct buffers are read without an intermediate copy per call
+    public static void hash(MessageDigest md, ByteBuffer data, byte[] out, int outOffset) {
+        md.update(data);
+        digest(md, out, outOffset);
+    }
+
+    private static void digest(MessageDigest md, byte[] out, int outOffset) {
+        try {
+            md.digest(out, outOffset, md.getDigestLength());
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
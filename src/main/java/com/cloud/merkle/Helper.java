@@ -10,32 +10,51 @@ import com.google.cloud.storage.StorageOptions;
 import java.io.*;
 import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Helper implements HttpFunction {
-    public static long measureRecursiveMerkleTree(byte[][] data, int threshold) throws NoSuchAlgorithmException {
+    public static long measureRecursiveMerkleTree(byte[][] data, int threshold, MerkleHasher hasher) {
         Instant start = Instant.now();
-        byte[] root = RecursiveMerkleTree.genMerkleRootFromRaw(data, threshold);
+        byte[] root = RecursiveMerkleTree.genMerkleRootFromRaw(data, threshold, hasher);
         Instant end = Instant.now();
         return Duration.between(start,end).toMillis();
     }
 
-    public static long measureParallelMerkleTree(byte[][] data, int threshold) throws NoSuchAlgorithmException {
+    public static long measureParallelMerkleTree(byte[][] data, int threshold, MerkleHasher hasher) {
         Instant start = Instant.now();
-        byte[] root = ParallelMerkleTree.genMerkleRootFromRaw(data, threshold);
+        byte[] root = ParallelMerkleTree.genMerkleRootFromRaw(data, threshold, hasher);
         Instant end = Instant.now();
         return Duration.between(start,end).toMillis();
     }
 
-    public static long measureStandardMerkleTree(byte[][] data) throws NoSuchAlgorithmException {
+    public static long measureStandardMerkleTree(byte[][] data, MerkleHasher hasher) {
         Instant start = Instant.now();
-        byte[] root = MerkleTree.genMerkleRootFromRaw(data);
+        byte[] root = MerkleTree.genMerkleRootFromRaw(data, hasher);
         Instant end = Instant.now();
         return Duration.between(start,end).toMillis();
     }
 
+    public static long measureStreamingMerkleTree(BufferedReader reader, MerkleHasher hasher) throws IOException {
+        Instant start = Instant.now();
+        StreamingMerkleTree tree = new StreamingMerkleTree(hasher);
+        tree.addLines(reader);
+        byte[] root = tree.getRoot();
+        Instant end = Instant.now();
+        return Duration.between(start,end).toMillis();
+    }
+
+    // standard tree build time per hash algorithm over the same data
+    public static Map<String, Long> measureMerkleHashers(byte[][] data) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (MerkleHasher hasher : MerkleHasher.all()) {
+            result.put(hasher.name(), measureStandardMerkleTree(data, hasher));
+        }
+        return result;
+    }
+
     public static String encodeHexString(byte[] byteArray) {
         StringBuilder hexStringBuffer = new StringBuilder();
         for (byte b : byteArray) {
@@ -63,7 +82,9 @@ public class Helper implements HttpFunction {
         int threshold = httpRequest.getFirstQueryParameter("threshold")
                 .map(Integer::parseInt)
                 .orElse(1024);
+        MerkleHasher hasher = MerkleHasher.of(httpRequest.getFirstQueryParameter("algorithm").orElse(null));
         long result = 0;
+        Map<String, Long> hasherResult = new LinkedHashMap<>();
         for (int i=1; i<=fileNum; i++){
             Blob blob = storage.get("run-sources-protean-music-381914-us-central1", String.format("data/standard/test%d.txt", i));
             if (blob == null) {
@@ -72,6 +93,11 @@ public class Helper implements HttpFunction {
             }
 
             try (BufferedReader br = new BufferedReader(new InputStreamReader(Channels.newInputStream(blob.reader())))) {
+                if (mode == 4) {
+                    // hash while reading, the file is never held in memory
+                    result += measureStreamingMerkleTree(br, hasher);
+                    continue;
+                }
                 String line;
                 ILinkedList<byte[]> nodes = new ILinkedList<>();
                 while ((line = br.readLine()) != null) {
@@ -80,16 +106,20 @@ public class Helper implements HttpFunction {
                 byte[][] data = new byte[nodes.size][];
                 nodes.toArray(data);
                 if (mode == 0) {
-                    result += measureStandardMerkleTree(data);
+                    result += measureStandardMerkleTree(data, hasher);
                 } else if (mode == 1) {
-                    result += measureParallelMerkleTree(data, threshold);
+                    result += measureParallelMerkleTree(data, threshold, hasher);
                 } else if (mode == 2) {
-                    result += measureRecursiveMerkleTree(data, threshold);
+                    result += measureRecursiveMerkleTree(data, threshold, hasher);
+                } else if (mode == 3) {
+                    measureMerkleHashers(data).forEach((name, millis) -> hasherResult.merge(name, millis, Long::sum));
                 }
-            } catch (NoSuchAlgorithmException ae) {
-                httpResponse.getWriter().write("SHA-256 not supported");
             }
         }
+        if (mode == 3) {
+            httpResponse.getWriter().write(String.format("Result: %s", hasherResult));
+            return;
+        }
         httpResponse.getWriter().write(String.format("Result: %d", result));
     }
 }
@@ -0,0 +1,181 @@
+package com.cloud.merkle;
+
+import java.util.Arrays;
+
+public class IncrementalMerkleTree {
+    private final MerkleHasher hasher;
+    private final int hashLength;
+    // same layout as FlatMerkleTree, level arrays may have spare capacity beyond sizes[i] nodes
+    private byte[][] levels;
+    private int[] sizes;
+    private int height;
+
+    public IncrementalMerkleTree(MerkleHasher hasher) {
+        this.hasher = hasher;
+        this.hashLength = hasher.digestLength();
+        this.levels = new byte[][]{new byte[0]};
+        this.sizes = new int[1];
+        this.height = 1;
+    }
+
+    public IncrementalMerkleTree(FlatMerkleTree tree, MerkleHasher hasher) {
+        this.hasher = hasher;
+        this.hashLength = hasher.digestLength();
+        if (tree.hashLength() != hashLength) {
+            throw new IllegalArgumentException("Tree hash length does not match " + hasher.name());
+        }
+        this.height = tree.height();
+        this.levels = new byte[height][];
+        this.sizes = new int[height];
+        for (int i = 0; i < height; i++) {
+            sizes[i] = tree.levelSize(i);
+            levels[i] = Arrays.copyOf(tree.level(i), sizes[i] * hashLength);
+        }
+    }
+
+    public IncrementalMerkleTree(byte[][][] tree, MerkleHasher hasher) {
+        this.hasher = hasher;
+        this.hashLength = hasher.digestLength();
+        this.height = tree.length;
+        this.levels = new byte[height][];
+        this.sizes = new int[height];
+        for (int i = 0; i < height; i++) {
+            sizes[i] = tree[i].length;
+            levels[i] = FlatMerkleTree.allocateLevel(sizes[i], hashLength);
+            for (int j = 0; j < sizes[i]; j++) {
+                System.arraycopy(tree[i][j], 0, levels[i], j * hashLength, hashLength);
+            }
+        }
+    }
+
+    public int leafCount() {
+        return sizes[0];
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public byte[] getRoot() {
+        if (sizes[0] == 0) {
+            throw new IllegalStateException("Tree has no leaves");
+        }
+        return Arrays.copyOfRange(levels[height - 1], 0, hashLength);
+    }
+
+    public byte[] getLeaf(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(levels[0], index * hashLength, (index + 1) * hashLength);
+    }
+
+    public void updateLeaf(int index, byte[] hash) {
+        checkIndex(index);
+        System.arraycopy(hash, 0, levels[0], index * hashLength, hashLength);
+        rehashRange(index, index + 1);
+    }
+
+    public void append(byte[] hash) {
+        appendAll(new byte[][]{hash});
+    }
+
+    public void appendAll(byte[][] hashes) {
+        if (hashes.length == 0) {
+            return;
+        }
+        int from = sizes[0];
+        int to = from + hashes.length;
+        ensureCapacity(0, to);
+        for (int i = 0; i < hashes.length; i++) {
+            System.arraycopy(hashes[i], 0, levels[0], (from + i) * hashLength, hashLength);
+        }
+        sizes[0] = to;
+        rehashRange(from, to);
+    }
+
+    // ancestors shared by several updated leaves are hashed once per batch
+    public void updateLeaves(int[] indices, byte[][] hashes) {
+        if (indices.length != hashes.length) {
+            throw new IllegalArgumentException("Got " + indices.length + " indices for " + hashes.length + " hashes");
+        }
+        for (int i = 0; i < indices.length; i++) {
+            checkIndex(indices[i]);
+            System.arraycopy(hashes[i], 0, levels[0], indices[i] * hashLength, hashLength);
+        }
+        int[] dirty = indices.clone();
+        Arrays.sort(dirty);
+        int count = dirty.length;
+        for (int l = 0; sizes[l] > 1; l++) {
+            // parents of a sorted index list are sorted too, so duplicates are adjacent
+            int parents = 0;
+            for (int i = 0; i < count; i++) {
+                int p = dirty[i] >> 1;
+                if (parents == 0 || dirty[parents - 1] != p) {
+                    dirty[parents++] = p;
+                }
+            }
+            for (int i = 0; i < parents; i++) {
+                hashChildren(l, dirty[i]);
+            }
+            count = parents;
+        }
+    }
+
+    public byte[][] generateMerkleProof(int index) {
+        checkIndex(index);
+        return MerkleTree.generateMerkleProof(index, asFlatTree());
+    }
+
+    // view over the current levels, only valid until the next update or append
+    public FlatMerkleTree asFlatTree() {
+        return new FlatMerkleTree(Arrays.copyOf(levels, height), Arrays.copyOf(sizes, height), hashLength);
+    }
+
+    private void rehashRange(int from, int to) {
+        for (int l = 0; sizes[l] > 1; l++) {
+            int parentSize = (sizes[l] + 1) / 2;
+            if (l + 1 == height) {
+                addLevel();
+            }
+            ensureCapacity(l + 1, parentSize);
+            sizes[l + 1] = parentSize;
+            from = from >> 1;
+            to = ((to - 1) >> 1) + 1;
+            for (int p = from; p < to; p++) {
+                hashChildren(l, p);
+            }
+        }
+    }
+
+    private void hashChildren(int level, int parent) {
+        int left = 2 * parent * hashLength;
+        // the last node of an odd level is paired with itself
+        int right = 2 * parent + 1 < sizes[level] ? left + hashLength : left;
+        hasher.hashNode(levels[level], left, levels[level], right, levels[level + 1], parent * hashLength);
+    }
+
+    private void addLevel() {
+        if (height == levels.length) {
+            levels = Arrays.copyOf(levels, height * 2);
+            sizes = Arrays.copyOf(sizes, height * 2);
+        }
+        levels[height] = new byte[0];
+        sizes[height] = 0;
+        height++;
+    }
+
+    private void ensureCapacity(int level, int nodes) {
+        if (levels[level].length >= nodes * hashLength) {
+            return;
+        }
+        int capacity = Math.max(nodes, Math.min(2 * (levels[level].length / hashLength), Integer.MAX_VALUE / hashLength - 8));
+        byte[] grown = FlatMerkleTree.allocateLevel(Math.max(capacity, 16), hashLength);
+        System.arraycopy(levels[level], 0, grown, 0, sizes[level] * hashLength);
+        levels[level] = grown;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= sizes[0]) {
+            throw new IndexOutOfBoundsException("Leaf " + index + " out of range for " + sizes[0] + " leaves");
+        }
+    }
+}
@@ -3,29 +3,40 @@ package com.cloud.merkle;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2HTTPEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2HTTPResponse;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.time.Duration;
-import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
-public class LambdaWorker implements RequestHandler<APIGatewayV2HTTPEvent, String> {
+public class LambdaWorker implements RequestHandler<APIGatewayV2HTTPEvent, APIGatewayV2HTTPResponse> {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
     public static String S3_URL = "https://merkle-tree-inputs.s3.us-east-1.amazonaws.com/";
+    // survives between invocations of a warm container, the disk tier as long as its /tmp
+    static final SubRootCache CACHE = new SubRootCache(1 << 16, Path.of("/tmp/subroots"));
 
     @Override
-    public String handleRequest(APIGatewayV2HTTPEvent event, Context context) {
+    public APIGatewayV2HTTPResponse handleRequest(APIGatewayV2HTTPEvent event, Context context) {
+        if (BatchProtocol.isBatch(header(event, "content-type"))) {
+            return handleBatch(event, context);
+        }
         String body = event.getBody();
 
         EventPayload input = null;
@@ -43,22 +54,150 @@ public class LambdaWorker implements RequestHandler<APIGatewayV2HTTPEvent, Strin
             context.getLogger().log("Received input.take: " + input.take);
         }
 
+        long start = MerkleMetrics.start();
+        try {
+            String localFilePath = localCopy(S3_URL + input.fileName);
+            byte[] root = subRoot(localFilePath, input, CACHE, version(Path.of(localFilePath)));
+            MerkleMetrics.stop(MerkleMetrics.Phase.REQUEST, "LambdaWorker", start, 1);
+            logMetrics(context);
+            // hex string of root node
+            return APIGatewayV2HTTPResponse.builder()
+                    .withStatusCode(200)
+                    .withHeaders(Map.of("Content-Type", "text/plain"))
+                    .withBody(java.util.HexFormat.of().formatHex(root))
+                    .build();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // binary BatchProtocol call, the roots of every range go back in one base64 encoded body
+    private APIGatewayV2HTTPResponse handleBatch(APIGatewayV2HTTPEvent event, Context context) {
+        byte[] body = event.getIsBase64Encoded()
+                ? Base64.getDecoder().decode(event.getBody())
+                : event.getBody().getBytes(StandardCharsets.ISO_8859_1);
+        BatchProtocol.Request request;
+        try {
+            request = BatchProtocol.decodeRequest(body);
+        } catch (IllegalArgumentException e) {
+            return APIGatewayV2HTTPResponse.builder().withStatusCode(400).withBody(e.getMessage()).build();
+        }
+        if (context != null) {
+            context.getLogger().log("Received batch of " + request.ranges.size() + " ranges");
+        }
+        long start = MerkleMetrics.start();
         try {
-            byte[][] dataBytes = parseDataFromS3(S3_URL + input.fileName, input.chunkSize, input.skip, input.take);
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            Instant start = Instant.now();
-            byte[][] hashBatch = hashData(dataBytes, md);
-            byte[][][] tree = MerkleTree.generateMerkleTree(hashBatch, md);
-            Instant end = Instant.now();
-            System.out.println(Duration.between(start,end).toMillis());
-            System.out.println(tree.length);
-            System.out.println(tree[tree.length-1].length);
-            return java.util.HexFormat.of().formatHex(tree[tree.length-1][0]); // hex string of root node
-        } catch (IOException | NoSuchAlgorithmException e) {
+            // one conditional GET per distinct file, however many of its ranges are in the batch
+            Map<String, Path> files = new HashMap<>();
+            for (EventPayload range : request.ranges) {
+                if (!files.containsKey(range.fileName)) {
+                    files.put(range.fileName, Path.of(localCopy(S3_URL + range.fileName)));
+                }
+            }
+            byte[] roots = subRoots(request, files, CACHE);
+            MerkleMetrics.stop(MerkleMetrics.Phase.REQUEST, "LambdaWorker", start, request.ranges.size());
+            logMetrics(context);
+            return APIGatewayV2HTTPResponse.builder()
+                    .withStatusCode(200)
+                    .withHeaders(Map.of("Content-Type", BatchProtocol.CONTENT_TYPE))
+                    .withIsBase64Encoded(true)
+                    .withBody(Base64.getEncoder().encodeToString(roots))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return APIGatewayV2HTTPResponse.builder().withStatusCode(400).withBody(e.getMessage()).build();
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // totals since the container started, only while a registry is installed
+    private static void logMetrics(Context context) {
+        MerkleMetrics.Registry registry = MerkleMetrics.registry();
+        if (context != null && registry != null) {
+            context.getLogger().log("Metrics: " + registry);
+        }
+    }
+
+    private static String header(APIGatewayV2HTTPEvent event, String name) {
+        if (event.getHeaders() == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : event.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    // encoded BatchProtocol response for a request whose files are already in dataDir
+    public static byte[] subRoots(BatchProtocol.Request request, Path dataDir) throws IOException {
+        return subRoots(request, dataDir, null);
+    }
+
+    public static byte[] subRoots(BatchProtocol.Request request, Path dataDir, SubRootCache cache) throws IOException {
+        Map<String, Path> files = new HashMap<>();
+        for (EventPayload range : request.ranges) {
+            files.put(range.fileName, localFile(dataDir, range.fileName));
+        }
+        return subRoots(request, files, cache);
+    }
+
+    // cache may be null, ranges are keyed by the version of their file
+    public static byte[] subRoots(BatchProtocol.Request request, Map<String, Path> files, SubRootCache cache)
+            throws IOException {
+        MerkleHasher hasher = MerkleHasher.of(request.algorithm);
+        byte[][] roots = new byte[request.ranges.size()][];
+        for (int i = 0; i < roots.length; i++) {
+            EventPayload range = request.ranges.get(i);
+            Path file = files.get(range.fileName);
+            roots[i] = subRoot(file.toString(), range, cache, cache == null ? null : version(file));
+        }
+        return BatchProtocol.encodeResponse(roots, hasher.digestLength());
+    }
+
+    public static byte[] subRoot(String localFilePath, EventPayload input, SubRootCache cache, String version)
+            throws IOException {
+        if (cache == null) {
+            return subRoot(localFilePath, input);
+        }
+        SubRootCache.Key key = SubRootCache.Key.of(version, input);
+        byte[] root = cache.get(key);
+        if (root == null) {
+            root = subRoot(localFilePath, input);
+            cache.put(key, root);
+        } else {
+            MerkleMetrics.count(MerkleMetrics.Counter.CACHE_HITS, 1);
+        }
+        return root;
+    }
+
+    // S3 ETag of a downloaded copy, otherwise size and modification time of the file
+    public static String version(Path file) throws IOException {
+        Path etag = etagFile(file.toString());
+        if (Files.exists(etag)) {
+            return Files.readString(etag);
+        }
+        return SubRootCache.fileVersion(file);
+    }
+
+    // root over the whole chunks [skip, skip + take) of a local file, shared with LocalWorkerServer;
+    // a slice cut short by the end of the file gets its own unlifted root, see MerkleTree.combineSubRoots
+    public static byte[] subRoot(String localFilePath, EventPayload input) throws IOException {
+        MerkleHasher hasher = MerkleHasher.of(input.algorithm);
+        long start = MerkleMetrics.start();
+        byte[] hashBatch = hashDataMapped(localFilePath, input.chunkSize, input.skip, input.take, hasher);
+        int leaves = hashBatch.length / hasher.digestLength();
+        // the chunks are read from the mapping as they are hashed, the read is part of the leaf phase
+        MerkleMetrics.stop(MerkleMetrics.Phase.LEAF_HASH, "LambdaWorker", start, leaves);
+        MerkleMetrics.count(MerkleMetrics.Counter.BYTES_READ, (long) leaves * input.chunkSize);
+        if (leaves == 0) {
+            throw new IllegalArgumentException("Slice at chunk " + input.skip + " starts past the end of " + input.fileName);
+        }
+        FlatMerkleTree tree = MerkleTree.generateFlatMerkleTree(hashBatch, leaves, hasher);
+        return MerkleTree.getRootFromTree(tree);
+    }
+
     public Set<String> listFilesUsingJavaIO(String dir) {
         return Stream.of(Objects.requireNonNull(new File(dir).listFiles()))
                 .filter(file -> !file.isDirectory())
@@ -71,39 +210,85 @@ public class LambdaWorker implements RequestHandler<APIGatewayV2HTTPEvent, Strin
         try (FileInputStream fis = new FileInputStream(file)) {
             byte[][] dataBytes = new byte[(int) (file.length() / chunkSize)][chunkSize];
             for (int i = 0; i < dataBytes.length; i++) {
-                fis.read(dataBytes[i], 0, chunkSize);
+                fis.readNBytes(dataBytes[i], 0, chunkSize);
             }
-            fis.close();
             return dataBytes;
         }
     }
 
     public static byte[][] parseDataFromS3(String s3Url, int chunkSize, int skip, int take) throws IOException {
+        // Parse the file
+        return parseData(localCopy(s3Url), chunkSize, skip, take);
+    }
+
+    public static byte[] hashDataFromS3(String s3Url, int chunkSize, int skip, int take, MerkleHasher hasher) throws IOException {
+        return hashDataMapped(localCopy(s3Url), chunkSize, skip, take, hasher);
+    }
+
+    private static String localCopy(String s3Url) throws IOException {
         // Prepare local file path
-        String localFilePath = "/tmp/" + extractFileName(s3Url);
+        String fileName = extractFileName(s3Url);
+        String localFilePath = localFile(Path.of("/tmp"), fileName).toString();
         File localFile = new File(localFilePath);
+        Path etagFile = etagFile(localFilePath);
 
-        // Download only if file does not exist
-        if (!localFile.exists()) {
+        // a copy is reused only while S3 still serves the ETag it was downloaded with
+        String etag = localFile.exists() && Files.exists(etagFile) ? Files.readString(etagFile) : null;
+        HttpURLConnection connection = (HttpURLConnection) new URL(s3Url).openConnection();
+        try {
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                System.out.println("File already exists locally. Skipping download.");
+                return localFilePath;
+            }
             System.out.println("Downloading file from S3...");
-            downloadFileFromS3(s3Url, localFilePath);
-        } else {
-            System.out.println("File already exists locally. Skipping download.");
+            // without a tag the copy is versioned by size and modification time until the new tag is written
+            Files.deleteIfExists(etagFile);
+            long start = MerkleMetrics.start();
+            downloadFileFromS3(connection, localFilePath);
+            MerkleMetrics.stop(MerkleMetrics.Phase.READ, "LambdaWorker", start, localFile.length());
+            String current = connection.getHeaderField("ETag");
+            if (current != null) {
+                Files.writeString(etagFile, current);
+                CACHE.invalidate(fileName, current);
+            }
+        } finally {
+            connection.disconnect();
         }
+        return localFilePath;
+    }
 
-        // Parse the file
-        return parseData(localFilePath, chunkSize, skip, take);
+    private static Path etagFile(String localFilePath) {
+        return Path.of(localFilePath + ".etag");
     }
 
-    private static void downloadFileFromS3(String s3Url, String localFilePath) throws IOException {
-        try (InputStream in = new URL(s3Url).openStream();
-             FileOutputStream out = new FileOutputStream(localFilePath)) {
+    // written aside and moved into place, a concurrent reader never maps a half-written file
+    private static void downloadFileFromS3(HttpURLConnection connection, String localFilePath) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("S3 returned " + connection.getResponseCode() + " for " + connection.getURL());
+        }
+        Path target = Path.of(localFilePath);
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), "download", ".tmp");
+        try (InputStream in = connection.getInputStream();
+             FileOutputStream out = new FileOutputStream(temp.toFile())) {
             byte[] buffer = new byte[8192];
             int bytesRead;
             while ((bytesRead = in.read(buffer)) != -1) {
                 out.write(buffer, 0, bytesRead);
             }
         }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // a bare file name inside dataDir, a request never reaches outside it
+    public static Path localFile(Path dataDir, String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")
+                || fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Not a plain file name: " + fileName);
+        }
+        return dataDir.resolve(fileName);
     }
 
     private static String extractFileName(String s3Url) {
@@ -115,32 +300,34 @@ public class LambdaWorker implements RequestHandler<APIGatewayV2HTTPEvent, Strin
             long position = (long) skip * chunkSize;
             raf.seek(position);
 
-            byte[][] dataBytes = new byte[take][chunkSize];
-            for (int i = 0; i < take; i++) {
-                int totalRead = 0;
-                while (totalRead < chunkSize) {
-                    int bytesRead = raf.read(dataBytes[i], totalRead, chunkSize - totalRead);
-                    if (bytesRead < 0) {
-                        break;
-                    }
-                    totalRead += bytesRead;
-                }
-                if (totalRead < chunkSize) {
-                    break;
-                }
+            // only whole chunks, like parseData(fileName, chunkSize), so a slice never gains zero-filled leaves
+            long available = Math.max(0, raf.length() - position) / chunkSize;
+            byte[][] dataBytes = new byte[(int) Math.min(take, available)][chunkSize];
+            for (byte[] chunk : dataBytes) {
+                raf.readFully(chunk);
             }
             return dataBytes;
         }
     }
 
+    // only md.getAlgorithm() is used, the digest itself is never touched; pass a MerkleHasher instead
+    @Deprecated
     public static byte[][] hashData(byte[][] dataChunks, MessageDigest md) {
-        byte[][] hashBatch = new byte[dataChunks.length][32];
-        for (int i = 0; i < dataChunks.length; i++) {
-            hashBatch[i] = md.digest(dataChunks[i]);
-        }
+        return MerkleTree.hashLeaves(dataChunks, MerkleHasher.of(md.getAlgorithm()));
+    }
+
+    public static byte[] hashDataFlat(byte[][] dataChunks, MerkleHasher hasher) {
+        int hashLength = hasher.digestLength();
+        byte[] hashBatch = FlatMerkleTree.allocateLevel(dataChunks.length, hashLength);
+        hasher.hashLeaves(dataChunks, 0, dataChunks.length, hashBatch, 0);
         return hashBatch;
     }
 
+    // same leaves as hashDataFlat(parseData(fileName, chunkSize, skip, take), hasher) without reading the chunks into arrays
+    public static byte[] hashDataMapped(String fileName, int chunkSize, int skip, int take, MerkleHasher hasher) throws IOException {
+        return MappedChunkReader.hashChunks(fileName, chunkSize, skip, take, hasher);
+    }
+
     public static void main(String[] args) {
 //        var handler = new MyLambdaHandler();
 //        var payload = new EventPayload();
@@ -0,0 +1,35 @@
+package com.cloud.merkle;
+
+import java.util.Arrays;
+
+// latencies of the most recent calls, for quantiles such as the hedging threshold
+public class LatencyTracker {
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    public LatencyTracker(int window) {
+        this.samples = new long[window];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    // nearest-rank quantile in nanoseconds, -1 while nothing was recorded
+    public synchronized long quantile(double q) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(q * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))];
+    }
+}
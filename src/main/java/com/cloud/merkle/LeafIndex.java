@@ -0,0 +1,73 @@
+package com.cloud.merkle;
+
+import java.util.Arrays;
+
+// open-addressing map from leaf hash to leaf position, keyed on the first 8 bytes of the hash
+public class LeafIndex {
+    private final FlatMerkleTree tree;
+    private final long[] keys;
+    // position + 1, 0 marks an empty slot
+    private final int[] slots;
+    private final int mask;
+
+    LeafIndex(FlatMerkleTree tree) {
+        this.tree = tree;
+        int leaves = tree.leafCount();
+        int capacity = Integer.highestOneBit(Math.max(4, (int) Math.min(1 << 30, leaves * 4L / 3)) - 1) << 1;
+        this.keys = new long[capacity];
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        byte[] level = tree.level(0);
+        // inserting in leaf order keeps duplicates ordered along their probe sequence
+        for (int i = 0; i < leaves; i++) {
+            long key = key(level, tree.offset(i), tree.hashLength());
+            int slot = home(key);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            slots[slot] = i + 1;
+        }
+    }
+
+    // lowest position holding the hash, -1 if absent
+    public int indexOf(byte[] hash) {
+        long key = key(hash, 0, hash.length);
+        for (int slot = home(key); slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key && matches(hash, slots[slot] - 1)) {
+                return slots[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    // every position holding the hash, ascending
+    public int[] indicesOf(byte[] hash) {
+        long key = key(hash, 0, hash.length);
+        int[] found = new int[0];
+        for (int slot = home(key); slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key && matches(hash, slots[slot] - 1)) {
+                found = Arrays.copyOf(found, found.length + 1);
+                found[found.length - 1] = slots[slot] - 1;
+            }
+        }
+        return found;
+    }
+
+    private boolean matches(byte[] hash, int position) {
+        int from = tree.offset(position);
+        return Arrays.equals(hash, 0, hash.length, tree.level(0), from, from + tree.hashLength());
+    }
+
+    private int home(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private static long key(byte[] hash, int offset, int length) {
+        long key = 0;
+        for (int i = 0; i < Math.min(8, length); i++) {
+            key = (key << 8) | (hash[offset + i] & 0xFF);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,132 @@
+package com.cloud.merkle;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+// stands in for the Lambda function URL, answering JSON and BatchProtocol calls from files in a local directory
+public class LocalWorkerServer {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path dataDir;
+    // injected faults, so retries and hedging can be exercised locally
+    private volatile double errorRate;
+    private volatile double delayRate;
+    private volatile Duration delay = Duration.ZERO;
+    private volatile SubRootCache cache;
+
+    public LocalWorkerServer(int port, Path dataDir) throws IOException {
+        this.dataDir = dataDir;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = VirtualThreads.newExecutor(64);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    // answers this fraction of calls with a 503
+    public LocalWorkerServer withErrorRate(double rate) {
+        this.errorRate = rate;
+        return this;
+    }
+
+    // holds this fraction of calls for delay before answering, a straggler for the hedging logic
+    public LocalWorkerServer withDelay(double rate, Duration delay) {
+        this.delayRate = rate;
+        this.delay = delay;
+        return this;
+    }
+
+    // answers ranges of unchanged files from cache instead of hashing them again
+    public LocalWorkerServer withCache(SubRootCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public LocalWorkerServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < delayRate) {
+                Thread.sleep(delay.toMillis());
+            }
+            if (random.nextDouble() < errorRate) {
+                respond(exchange, 503, "Injected failure");
+                return;
+            }
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if (BatchProtocol.isBatch(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                BatchProtocol.Request request;
+                try {
+                    request = BatchProtocol.decodeRequest(body);
+                } catch (IllegalArgumentException e) {
+                    respond(exchange, 400, e.getMessage());
+                    return;
+                }
+                respond(exchange, 200, BatchProtocol.CONTENT_TYPE, LambdaWorker.subRoots(request, dataDir, cache));
+                return;
+            }
+            EventPayload input = objectMapper.readValue(new String(body, StandardCharsets.UTF_8), EventPayload.class);
+            Path file = LambdaWorker.localFile(dataDir, input.fileName);
+            SubRootCache cache = this.cache;
+            byte[] root = LambdaWorker.subRoot(file.toString(), input, cache, cache == null ? null : LambdaWorker.version(file));
+            respond(exchange, 200, HexFormat.of().formatHex(root));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            respond(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        respond(exchange, status, "text/plain", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // LocalWorkerServer [port] [dataDir] [errorRate] [delayRate] [delayMillis],
+    // the data directory defaults to the /tmp cache LambdaWorker uses
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Path dataDir = Path.of(args.length > 1 ? args[1] : "/tmp");
+        LocalWorkerServer server = new LocalWorkerServer(port, dataDir)
+                .withErrorRate(args.length > 2 ? Double.parseDouble(args[2]) : 0)
+                .withDelay(args.length > 3 ? Double.parseDouble(args[3]) : 0,
+                        Duration.ofMillis(args.length > 4 ? Long.parseLong(args[4]) : 0))
+                .start();
+        System.out.println("Worker listening on " + server.url() + ", serving " + dataDir.toAbsolutePath());
+    }
+}
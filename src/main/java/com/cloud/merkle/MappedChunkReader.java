@@ -0,0 +1,45 @@
+package com.cloud.merkle;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// hashes fixed-size chunks straight out of memory-mapped windows of a file, no per-chunk arrays
+public class MappedChunkReader {
+    // one mapping addresses at most 2 GB, larger ranges are walked window by window
+    private static final long MAX_WINDOW = 1L << 30;
+
+    // flat leaf level of the whole chunks in [skip, skip + take), shorter when the file ends first
+    public static byte[] hashChunks(String fileName, int chunkSize, long skip, int take, MerkleHasher hasher) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            byte[] hashBatch = FlatMerkleTree.allocateLevel(take, hasher.digestLength());
+            int hashed = hashChunks(channel, chunkSize, skip, take, hasher, hashBatch, 0);
+            return hashed == take ? hashBatch : Arrays.copyOf(hashBatch, hashed * hasher.digestLength());
+        }
+    }
+
+    // writes the hashes back to back from out[outOffset..] and returns how many whole chunks were hashed
+    public static int hashChunks(FileChannel channel, int chunkSize, long skip, int take, MerkleHasher hasher,
+                                 byte[] out, int outOffset) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        long start = skip * chunkSize;
+        long available = Math.max(0, channel.size() - start) / chunkSize;
+        int count = (int) Math.min(take, available);
+        long windowChunks = Math.max(1, MAX_WINDOW / chunkSize);
+        int hashLength = hasher.digestLength();
+        int done = 0;
+        while (done < count) {
+            int chunks = (int) Math.min(windowChunks, count - done);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start + (long) done * chunkSize, (long) chunks * chunkSize);
+            hasher.hashLeaves(window, chunkSize, chunks, out, outOffset + done * hashLength);
+            done += chunks;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,157 @@
+package com.cloud.merkle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// read-only view of a MerkleTreeFile: opening reads only the header, each level is mapped on first use and the
+// OS pages nodes in on demand, so a proof touches one page per level
+public class MappedMerkleTree implements Closeable {
+    // one mapping addresses at most 2 GB, larger levels are split into windows
+    private static final long MAX_WINDOW = 1L << 30;
+
+    private final FileChannel channel;
+    private final MerkleTreeFile.Header header;
+    private final int nodesPerWindow;
+    // windows[level][w], mapped lazily
+    private final MappedByteBuffer[][] windows;
+
+    private MappedMerkleTree(FileChannel channel, MerkleTreeFile.Header header) {
+        this.channel = channel;
+        this.header = header;
+        this.nodesPerWindow = (int) (MAX_WINDOW / header.hashLength);
+        this.windows = new MappedByteBuffer[header.height()][];
+        for (int l = 0; l < windows.length; l++) {
+            windows[l] = new MappedByteBuffer[(header.levelSize(l) + nodesPerWindow - 1) / nodesPerWindow];
+        }
+    }
+
+    public static MappedMerkleTree open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer fixed = read(channel, 0, MerkleTreeFile.FIXED_HEADER);
+            int nameLength = fixed.get(6) & 0xFF;
+            int levels = fixed.getInt(12);
+            if (levels < 1 || levels > 32) {
+                throw new IllegalArgumentException("Bad tree file header: " + levels + " levels");
+            }
+            int restLength = MerkleTreeFile.offsetTable(nameLength) + 8 * levels - MerkleTreeFile.FIXED_HEADER;
+            ByteBuffer rest = read(channel, MerkleTreeFile.FIXED_HEADER, restLength);
+            return new MappedMerkleTree(channel, MerkleTreeFile.decodeHeader(fixed, rest, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public MerkleTreeFile.Header header() {
+        return header;
+    }
+
+    public String algorithm() {
+        return header.algorithm;
+    }
+
+    public int height() {
+        return header.height();
+    }
+
+    public int hashLength() {
+        return header.hashLength;
+    }
+
+    public int leafCount() {
+        return header.leafCount;
+    }
+
+    public int levelSize(int level) {
+        return header.levelSize(level);
+    }
+
+    public byte[] getNode(int level, int index) {
+        byte[] node = new byte[header.hashLength];
+        copyNode(level, index, node, 0);
+        return node;
+    }
+
+    public void copyNode(int level, int index, byte[] dest, int destOffset) {
+        if (index < 0 || index >= header.levelSize(level)) {
+            throw new IndexOutOfBoundsException("Node " + index + " of level " + level + " out of range");
+        }
+        MappedByteBuffer window = window(level, index / nodesPerWindow);
+        window.get((index % nodesPerWindow) * header.hashLength, dest, destOffset, header.hashLength);
+    }
+
+    public byte[] getRoot() {
+        return getNode(header.height() - 1, 0);
+    }
+
+    // same proof as MerkleTree.generateMerkleProof(leafIndex, FlatMerkleTree) over the loaded tree
+    public byte[][] generateMerkleProof(int leafIndex) {
+        int hashLength = header.hashLength;
+        byte[][] proof = new byte[height() - 1][hashLength + 1];
+        int hashIndex = leafIndex;
+        for (int i = 0; i < height() - 1; i++) {
+            // level i, the last node of an odd level is paired with itself
+            int proofIndex = hashIndex ^ 1;
+            if (proofIndex >= levelSize(i)) {
+                proofIndex = hashIndex;
+            }
+            copyNode(i, proofIndex, proof[i], 0);
+            proof[i][hashLength] = (byte) ((hashIndex % 2) ^ 1);
+            hashIndex = hashIndex / 2;
+        }
+        return proof;
+    }
+
+    // reads every level into memory
+    public FlatMerkleTree load() {
+        byte[][] levels = new byte[height()][];
+        int[] sizes = new int[height()];
+        for (int l = 0; l < levels.length; l++) {
+            sizes[l] = levelSize(l);
+            levels[l] = FlatMerkleTree.allocateLevel(sizes[l], header.hashLength);
+            for (int w = 0; w < windows[l].length; w++) {
+                MappedByteBuffer window = window(l, w);
+                window.get(0, levels[l], w * nodesPerWindow * header.hashLength, window.capacity());
+            }
+        }
+        return new FlatMerkleTree(levels, sizes, header.hashLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mappings stay valid until collected, closing only releases the descriptor
+        channel.close();
+    }
+
+    private synchronized MappedByteBuffer window(int level, int w) {
+        MappedByteBuffer window = windows[level][w];
+        if (window == null) {
+            int nodes = Math.min(nodesPerWindow, header.levelSize(level) - w * nodesPerWindow);
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        header.levelOffset(level) + (long) w * nodesPerWindow * header.hashLength,
+                        (long) nodes * header.hashLength);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot map level " + level + " of the tree file", e);
+            }
+            windows[level][w] = window;
+        }
+        return window;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IllegalArgumentException("Truncated tree file header");
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,98 @@
+package com.cloud.merkle;
+
+import java.nio.ByteBuffer;
+
+public interface MerkleHasher {
+    // multi-buffer when built with the vector profile and the Vector API is available, see DigestMerkleHasher.sha256
+    MerkleHasher SHA_256 = DigestMerkleHasher.sha256();
+    MerkleHasher SHA_512_256 = new DigestMerkleHasher("SHA-512/256");
+    MerkleHasher SHA3_256 = new DigestMerkleHasher("SHA3-256");
+    MerkleHasher BLAKE2B_256 = new Blake2bMerkleHasher(32);
+
+    String name();
+
+    int digestLength();
+
+    // hash(data[offset..offset+length]) written to out[outOffset..]
+    void hashLeaf(byte[] data, int offset, int length, byte[] out, int outOffset);
+
+    // hash of data's remaining bytes, which are consumed
+    default void hashLeaf(ByteBuffer data, byte[] out, int outOffset) {
+        if (data.hasArray()) {
+            hashLeaf(data.array(), data.arrayOffset() + data.position(), data.remaining(), out, outOffset);
+            data.position(data.limit());
+        } else {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            hashLeaf(copy, 0, copy.length, out, outOffset);
+        }
+    }
+
+    // hash(left || right) over digestLength() bytes of each child, out may alias either child
+    void hashNode(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] out, int outOffset);
+
+    // count leaves of length bytes each, back to back from data[offset..], hashed back to back into out[outOffset..];
+    // the bulk methods let a multi-buffer hasher work through several messages at once
+    default void hashLeaves(byte[] data, int offset, int length, int count, byte[] out, int outOffset) {
+        int hashLength = digestLength();
+        for (int i = 0; i < count; i++) {
+            hashLeaf(data, offset + i * length, length, out, outOffset + i * hashLength);
+        }
+    }
+
+    // data[from..to) hashed back to back into out[outOffset..]
+    default void hashLeaves(byte[][] data, int from, int to, byte[] out, int outOffset) {
+        int hashLength = digestLength();
+        for (int i = from; i < to; i++) {
+            hashLeaf(data[i], 0, data[i].length, out, outOffset + (i - from) * hashLength);
+        }
+    }
+
+    // count leaves of length bytes each, consumed from data's position
+    default void hashLeaves(ByteBuffer data, int length, int count, byte[] out, int outOffset) {
+        int hashLength = digestLength();
+        int limit = data.limit();
+        for (int i = 0; i < count; i++) {
+            // hashLeaf consumes up to the limit, so the position already sits on the next leaf
+            data.limit(data.position() + length);
+            hashLeaf(data, out, outOffset + i * hashLength);
+        }
+        data.limit(limit);
+    }
+
+    // parents of count adjacent pairs back to back from children[offset..], written back to back into
+    // out[outOffset..]; out may be children at the same offset, a parent never overwrites a pair not yet read
+    default void hashNodes(byte[] children, int offset, int count, byte[] out, int outOffset) {
+        int hashLength = digestLength();
+        for (int i = 0; i < count; i++) {
+            int left = offset + 2 * i * hashLength;
+            hashNode(children, left, children, left + hashLength, out, outOffset + i * hashLength);
+        }
+    }
+
+    default byte[] hashLeaf(byte[] data) {
+        byte[] out = new byte[digestLength()];
+        hashLeaf(data, 0, data.length, out, 0);
+        return out;
+    }
+
+    default void hashNode(byte[] left, byte[] right, byte[] out) {
+        hashNode(left, 0, right, 0, out, 0);
+    }
+
+    static MerkleHasher[] all() {
+        return new MerkleHasher[]{SHA_256, SHA_512_256, SHA3_256, BLAKE2B_256};
+    }
+
+    static MerkleHasher of(String name) {
+        if (name == null) {
+            return SHA_256;
+        }
+        for (MerkleHasher hasher : all()) {
+            if (hasher.name().equalsIgnoreCase(name)) {
+                return hasher;
+            }
+        }
+        return DigestMerkleHasher.of(name);
+    }
+}
@@ -0,0 +1,127 @@
+package com.cloud.merkle;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// phase timings and counters of tree builds, workers and orchestrators, sent to an installed Registry and as
+// com.cloud.merkle.Phase JFR events. Builders time whole phases (a batch of leaves, a level, a request), never
+// single hashes, and start() returns 0 while neither listens, so a disabled build pays one branch per phase.
+// -Dmerkle.metrics=true installs a MetricsRegistry at startup.
+public class MerkleMetrics {
+    public enum Phase {
+        // bytes downloaded, also counted as Counter.BYTES_DOWNLOADED
+        READ(false),
+        // leaves hashed
+        LEAF_HASH(true),
+        // parents hashed, level is the parent level or -1 for builders that do not go level by level
+        LEVEL(true),
+        // sub-roots joined into a root
+        COMBINE(false),
+        // slices answered by a worker, or asked of one by an orchestrator
+        REQUEST(false);
+
+        // items are hashes, also counted as Counter.HASHES
+        final boolean hashes;
+
+        Phase(boolean hashes) {
+            this.hashes = hashes;
+        }
+    }
+
+    public enum Counter {
+        HASHES,
+        // bytes of local files hashed
+        BYTES_READ,
+        // bytes fetched into local files, a file downloaded and then hashed counts under both
+        BYTES_DOWNLOADED,
+        FORK_JOIN_TASKS,
+        CACHE_HITS
+    }
+
+    // receives every measurement while installed, called concurrently from any thread
+    public interface Registry {
+        void record(Phase phase, String source, int level, long nanos, long items);
+
+        void count(Counter counter, long delta);
+    }
+
+    @Name("com.cloud.merkle.Phase")
+    @Label("Merkle Phase")
+    @Category("Merkle Tree")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Source")
+        String source;
+        @Label("Level")
+        int level;
+        @Label("Items")
+        long items;
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    private static final EventType PHASE_EVENT = EventType.getEventType(PhaseEvent.class);
+    private static volatile Registry registry = Boolean.getBoolean("merkle.metrics") ? new MetricsRegistry() : null;
+
+    // null uninstalls
+    public static void install(Registry newRegistry) {
+        registry = newRegistry;
+    }
+
+    public static Registry registry() {
+        return registry;
+    }
+
+    public static boolean enabled() {
+        return registry != null || PHASE_EVENT.isEnabled();
+    }
+
+    // start of a phase, 0 when nothing listens
+    public static long start() {
+        return enabled() ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Phase phase, String source, long start, long items) {
+        stop(phase, source, -1, start, items);
+    }
+
+    public static void stop(Phase phase, String source, int level, long start, long items) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        Registry current = registry;
+        if (current != null) {
+            current.record(phase, source, level, nanos, items);
+            if (phase.hashes) {
+                current.count(Counter.HASHES, items);
+            } else if (phase == Phase.READ) {
+                current.count(Counter.BYTES_DOWNLOADED, items);
+            }
+        }
+        PhaseEvent event = new PhaseEvent();
+        if (event.shouldCommit()) {
+            event.phase = phase.name();
+            event.source = source;
+            event.level = level;
+            event.items = items;
+            event.elapsed = nanos;
+            event.commit();
+        }
+    }
+
+    public static void count(Counter counter, long delta) {
+        Registry current = registry;
+        if (current != null) {
+            current.count(counter, delta);
+        }
+    }
+}
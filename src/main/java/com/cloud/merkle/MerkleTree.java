@@ -1,24 +1,26 @@
 package com.cloud.merkle;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class MerkleTree {
+    // only md.getAlgorithm() is used, the digest itself is never touched; pass a MerkleHasher instead
+    @Deprecated
     public static byte[] genRootFromProof(byte[] hash, byte[][] proof, MessageDigest md) {
-        byte[] result = hash;
-        byte[] merged = new byte[64];
+        return genRootFromProof(hash, proof, MerkleHasher.of(md.getAlgorithm()));
+    }
+
+    public static byte[] genRootFromProof(byte[] hash, byte[][] proof, MerkleHasher hasher) {
+        int hashLength = hasher.digestLength();
+        byte[] result = hash.clone();
         for (int i = 0; i < proof.length; i++) {
-            if (proof[i][32] == 1) {
-                System.arraycopy(result, 0, merged, 0, 32);
-                System.arraycopy(proof[i], 0, merged, 32, 32);
+            if (proof[i][hashLength] == 1) {
+                hasher.hashNode(result, proof[i], result);
             } else {
-                System.arraycopy(proof[i], 0, merged, 0, 32);
-                System.arraycopy(result, 0, merged, 32, 32);
+                hasher.hashNode(proof[i], result, result);
             }
-            result = md.digest(merged);
         }
         return result;
     }
@@ -27,47 +29,71 @@ public class MerkleTree {
         return tree[tree.length - 1][0];
     }
 
+    public static byte[] getRootFromTree(FlatMerkleTree tree) {
+        return tree.getRoot();
+    }
+
+    public static byte[][] generateMerkleProof(byte[] hash, FlatMerkleTree tree) {
+        int hashIndex = tree.indexOf(hash);
+        if (hashIndex == -1) {
+            return new byte[tree.height() - 1][tree.hashLength() + 1];
+        }
+        return generateMerkleProof(hashIndex, tree);
+    }
+
+    public static byte[][] generateMerkleProof(int leafIndex, FlatMerkleTree tree) {
+        int hashLength = tree.hashLength();
+        byte[][] proof = new byte[tree.height() - 1][hashLength + 1];
+        int hashIndex = leafIndex;
+        for (int i = 0; i < tree.height() - 1; i++) {
+            // level i, the last node of an odd level is paired with itself
+            int proofIndex = hashIndex ^ 1;
+            if (proofIndex >= tree.levelSize(i)) {
+                proofIndex = hashIndex;
+            }
+            tree.copyNode(i, proofIndex, proof[i], 0);
+            proof[i][hashLength] = (byte) ((hashIndex % 2) ^ 1);
+            hashIndex = hashIndex / 2;
+        }
+        return proof;
+    }
+
     public static byte[][] generateMerkleProof(byte[] hash, byte[][][] tree) {
-        byte[][] proof = new byte[tree.length - 1][33];
+        int hashLength = tree[0][0].length;
+        byte[][] proof = new byte[tree.length - 1][hashLength + 1];
         int hashIndex = indexOf(hash, tree[0]);
         if (hashIndex != -1) {
             for (int i = 0; i < tree.length - 1; i++) {
-                // level i
-                int proofIndex = hashIndex + (int) Math.pow(-1, hashIndex % 2);
-                System.arraycopy(tree[i][proofIndex], 0, proof[i], 0, 32);
-                proof[i][32] = (byte) (proofIndex % 2);
+                // level i, the last node of an odd level is paired with itself
+                int proofIndex = hashIndex ^ 1;
+                if (proofIndex >= tree[i].length) {
+                    proofIndex = hashIndex;
+                }
+                System.arraycopy(tree[i][proofIndex], 0, proof[i], 0, hashLength);
+                proof[i][hashLength] = (byte) ((hashIndex % 2) ^ 1);
                 hashIndex = hashIndex / 2;
             }
         }
         return proof;
     }
 
+    // only md.getAlgorithm() is used, the digest itself is never touched; pass a MerkleHasher instead
+    @Deprecated
     public static byte[][] generateMerkleProof(byte[] hash, byte[][] hashBatch, MessageDigest md) {
-        int n = (int) (Math.log(hashBatch.length) / Math.log(2)) + 1;
-        byte[][] proof = new byte[n - 1][33];
-        int hashIndex = indexOf(hash, hashBatch);
-        if (hashIndex != -1) {
-            byte[][] hashToProcess = hashBatch;
-            for (int i = 0; i < n - 1; i++) {
-                // level i
-                byte[][] lv = new byte[hashToProcess.length / 2][32];
-                for (int j = 0; j < hashToProcess.length; j+=2) {
-                    // pair j and j+1
-                    byte[] merged = new byte[64];
-                    System.arraycopy(hashToProcess[j], 0, merged, 0, 32);
-                    System.arraycopy(hashToProcess[j + 1], 0, merged, 32, 32);
-                    lv[j/2] = md.digest(merged);
-
-                    if (j == hashIndex || j + 1 == hashIndex) {
-                        System.arraycopy(hashToProcess[hashIndex != j ? j: j + 1], 0, proof[i], 0, 32);
-                        proof[i][33] = (byte) ((hashIndex % 2) ^ 1);
-                        hashIndex = hashIndex / 2;
-                    }
-                }
-                hashToProcess = lv;
-            }
-        }
-        return proof;
+        return generateMerkleProof(hash, hashBatch, MerkleHasher.of(md.getAlgorithm()));
+    }
+
+    public static byte[][] generateMerkleProof(byte[] hash, byte[][] hashBatch, MerkleHasher hasher) {
+        return generateMerkleProof(hash, generateFlatMerkleTree(hashBatch, hasher));
+    }
+
+    // one proof for many leaves, siblings shared between their paths are stored once
+    public static MultiProof generateMultiProof(int[] leafIndices, FlatMerkleTree tree) {
+        return MultiProof.generate(leafIndices, tree);
+    }
+
+    public static byte[] genRootFromMultiProof(byte[][] leafHashes, MultiProof proof, MerkleHasher hasher) {
+        return proof.computeRoot(leafHashes, hasher);
     }
 
     public static int indexOf(byte[] hash, byte[][] hashBatch) {
@@ -79,62 +105,152 @@ public class MerkleTree {
         return -1;
     }
 
-    public static byte[] genMerkleRootFromRaw(byte[][] data) throws NoSuchAlgorithmException {
-        byte[][] hashes = new byte[data.length][32];
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
+    public static byte[] genMerkleRootFromRaw(byte[][] data) {
+        return genMerkleRootFromRaw(data, MerkleHasher.SHA_256);
+    }
+
+    public static byte[] genMerkleRootFromRaw(byte[][] data, MerkleHasher hasher) {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("No leaves to hash");
+        }
+        // bulk hashing into one flat level that is then halved in place
+        byte[] level = FlatMerkleTree.allocateLevel(data.length, hasher.digestLength());
+        long start = MerkleMetrics.start();
+        hasher.hashLeaves(data, 0, data.length, level, 0);
+        MerkleMetrics.stop(MerkleMetrics.Phase.LEAF_HASH, "MerkleTree", start, data.length);
+        return rootOfLevel(level, data.length, hasher);
+    }
+
+    public static byte[][] hashLeaves(byte[][] data, MerkleHasher hasher) {
+        int hashLength = hasher.digestLength();
+        byte[] flat = FlatMerkleTree.allocateLevel(data.length, hashLength);
+        long start = MerkleMetrics.start();
+        hasher.hashLeaves(data, 0, data.length, flat, 0);
+        MerkleMetrics.stop(MerkleMetrics.Phase.LEAF_HASH, "MerkleTree", start, data.length);
+        byte[][] hashes = new byte[data.length][];
         for (int i = 0; i < data.length; i++) {
-            hashes[i] = md.digest(data[i]);
+            hashes[i] = Arrays.copyOfRange(flat, i * hashLength, (i + 1) * hashLength);
+        }
+        return hashes;
+    }
+
+    // root of the canonical tree over size flat nodes, overwriting level
+    static byte[] rootOfLevel(byte[] level, int size, MerkleHasher hasher) {
+        int hashLength = hasher.digestLength();
+        for (int l = 1; size > 1; l++) {
+            long start = MerkleMetrics.start();
+            int pairs = size / 2;
+            hasher.hashNodes(level, 0, pairs, level, 0);
+            if (size % 2 == 1) {
+                // the last node of an odd level is paired with itself
+                int last = (size - 1) * hashLength;
+                hasher.hashNode(level, last, level, last, level, pairs * hashLength);
+            }
+            size = (size + 1) / 2;
+            MerkleMetrics.stop(MerkleMetrics.Phase.LEVEL, "MerkleTree", l, start, size);
         }
-        return genMerkleRootFromHash(hashes);
+        return Arrays.copyOf(level, hashLength);
+    }
+
+    public static byte[] genMerkleRootFromHash(byte[][] hashes) {
+        return genMerkleRootFromHash(hashes, MerkleHasher.SHA_256);
     }
 
-    public static byte[] genMerkleRootFromHash(byte[][] hashes) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        int n = (int) (Math.log(hashes.length) / Math.log(2)) + 1;
-        byte[][] hashToProcess = processLevels(hashes, md, n);
+    public static byte[] genMerkleRootFromHash(byte[][] hashes, MerkleHasher hasher) {
+        byte[][] hashToProcess = processLevels(hashes, hasher, FlatMerkleTree.levelCount(hashes.length));
         return hashToProcess[0];
     }
 
-    private static byte[][] processLevels(byte[][] hashes, MessageDigest md, int levels) {
+    // Canonical shape, shared by every builder and execution mode: each level is paired left to right and the
+    // last node of an odd level is paired with itself, which is what generateMerkleTree builds. The slice of
+    // 2^h leaves starting at a multiple of 2^h is the subtree under one node of level h, so its root can be
+    // computed anywhere. A shorter last slice has a lower root, which the parent tree lifts to height h by
+    // hashing it with itself.
+
+    // height of the canonical tree over leafCount leaves, ceil(log2(leafCount))
+    public static int treeHeight(int leafCount) {
+        return FlatMerkleTree.levelCount(leafCount) - 1;
+    }
+
+    public static byte[] liftRoot(byte[] root, int fromHeight, int toHeight, MerkleHasher hasher) {
+        if (fromHeight >= toHeight) {
+            return root;
+        }
+        byte[] lifted = new byte[hasher.digestLength()];
+        hasher.hashNode(root, root, lifted);
+        for (int h = fromHeight + 1; h < toHeight; h++) {
+            hasher.hashNode(lifted, lifted, lifted);
+        }
+        return lifted;
+    }
+
+    // root of leafCount leaves from the roots of consecutive slices of leavesPerSubRoot leaves each,
+    // the last one possibly shorter; equal to generateMerkleTree over all leaves
+    public static byte[] combineSubRoots(byte[][] subRoots, int leavesPerSubRoot, int leafCount, MerkleHasher hasher) {
+        if (Integer.bitCount(leavesPerSubRoot) != 1) {
+            throw new IllegalArgumentException("Slices must hold a power of two leaves, got " + leavesPerSubRoot);
+        }
+        int expected = (int) (((long) leafCount + leavesPerSubRoot - 1) / leavesPerSubRoot);
+        if (subRoots.length != expected) {
+            throw new IllegalArgumentException("Expected " + expected + " sub-roots for " + leafCount + " leaves, got " + subRoots.length);
+        }
+        if (subRoots.length == 1) {
+            return subRoots[0];
+        }
+        long start = MerkleMetrics.start();
+        byte[][] level = subRoots.clone();
+        int last = level.length - 1;
+        level[last] = liftRoot(level[last], treeHeight(leafCount - last * leavesPerSubRoot),
+                Integer.numberOfTrailingZeros(leavesPerSubRoot), hasher);
+        byte[] root = genMerkleRootFromHash(level, hasher);
+        MerkleMetrics.stop(MerkleMetrics.Phase.COMBINE, "MerkleTree", start, subRoots.length);
+        return root;
+    }
+
+    private static byte[][] processLevels(byte[][] hashes, MerkleHasher hasher, int levels) {
         byte[][] hashToProcess = hashes;
         for (int i = 1; i < levels; i++) {
             // level i
+            long start = MerkleMetrics.start();
+            int parents = (hashToProcess.length + 1) / 2;
             byte[][] lv;
-            if ((hashToProcess.length / 2) % 2 == 1) {
-                lv = new byte[hashToProcess.length / 2 + 1][32];
+            if (parents % 2 == 1) {
+                lv = new byte[parents + 1][hasher.digestLength()];
             } else {
-                lv = new byte[hashToProcess.length / 2][32];
+                lv = new byte[parents][hasher.digestLength()];
             }
             for (int j = 0; j < hashToProcess.length; j+=2) {
-                // pair j and j+1
-                byte[] merged = new byte[64];
-                System.arraycopy(hashToProcess[j], 0, merged, 0, 32);
-                System.arraycopy(hashToProcess[j + 1], 0, merged, 32, 32);
-                lv[j/2] = md.digest(merged);
+                // pair j and j+1, the last node of an odd level is paired with itself
+                byte[] right = j + 1 < hashToProcess.length ? hashToProcess[j + 1] : hashToProcess[j];
+                hasher.hashNode(hashToProcess[j], right, lv[j/2]);
             }
-            if ((hashToProcess.length / 2) % 2 == 1) {
+            if (parents % 2 == 1) {
                 lv[lv.length - 1] = lv[lv.length - 2];
             }
             hashToProcess = lv;
+            MerkleMetrics.stop(MerkleMetrics.Phase.LEVEL, "MerkleTree", i, start, parents);
         }
         return hashToProcess;
     }
 
-    public static byte[] generateMerkleRoot(byte[][] hashBatch, int level) throws NoSuchAlgorithmException {
-        int n = (int) (Math.log(hashBatch.length) / Math.log(2)) + 1;
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[][] hashToProcess = processLevels(hashBatch, md, n);
-        while (n < level) {
-            byte[] merged = new byte[64];
-            System.arraycopy(hashToProcess[0], 0, merged, 0, 32);
-            System.arraycopy(hashToProcess[0], 0, merged, 32, 32);
-            hashToProcess[0] = md.digest(merged);
-            n++;
-        }
-        return hashToProcess[0];
+    public static byte[] generateMerkleRoot(byte[][] hashBatch, int level) {
+        return generateMerkleRoot(hashBatch, level, MerkleHasher.SHA_256);
+    }
+
+    // root of hashBatch lifted to a tree of level levels
+    public static byte[] generateMerkleRoot(byte[][] hashBatch, int level, MerkleHasher hasher) {
+        int n = FlatMerkleTree.levelCount(hashBatch.length);
+        byte[][] hashToProcess = processLevels(hashBatch, hasher, n);
+        return liftRoot(hashToProcess[0], n - 1, level - 1, hasher);
     }
 
+    // only md.getAlgorithm() is used, the digest itself is never touched; pass a MerkleHasher instead
+    @Deprecated
     public static byte[][][] generateMerkleTree(byte[][] leaves, MessageDigest md) {
+        return generateMerkleTree(leaves, MerkleHasher.of(md.getAlgorithm()));
+    }
+
+    public static byte[][][] generateMerkleTree(byte[][] leaves, MerkleHasher hasher) {
         List<byte[][]> levels = new ArrayList<>();
         levels.add(leaves);
 
@@ -143,10 +259,9 @@ public class MerkleTree {
             if (currentLevel.length % 2 == 1) {
                 currentLevel = duplicateLastNode(currentLevel);
             }
-            byte[][] parentLevel = new byte[currentLevel.length / 2][md.getDigestLength()];
+            byte[][] parentLevel = new byte[currentLevel.length / 2][hasher.digestLength()];
             for (int i = 0; i < currentLevel.length; i += 2) {
-                byte[] merged = concat(currentLevel[i], currentLevel[i + 1]);
-                parentLevel[i / 2] = md.digest(merged);
+                hasher.hashNode(currentLevel[i], currentLevel[i + 1], parentLevel[i / 2]);
             }
             levels.add(parentLevel);
             currentLevel = parentLevel;
@@ -155,6 +270,41 @@ public class MerkleTree {
         return convertTo3D(levels);
     }
 
+    public static FlatMerkleTree generateFlatMerkleTree(byte[][] leaves, MerkleHasher hasher) {
+        int hashLength = hasher.digestLength();
+        byte[] flat = FlatMerkleTree.allocateLevel(leaves.length, hashLength);
+        for (int i = 0; i < leaves.length; i++) {
+            System.arraycopy(leaves[i], 0, flat, i * hashLength, hashLength);
+        }
+        return generateFlatMerkleTree(flat, leaves.length, hasher);
+    }
+
+    public static FlatMerkleTree generateFlatMerkleTree(byte[] leaves, int leafCount, MerkleHasher hasher) {
+        int hashLength = hasher.digestLength();
+        int height = FlatMerkleTree.levelCount(leafCount);
+        byte[][] levels = new byte[height][];
+        int[] sizes = new int[height];
+        levels[0] = leaves;
+        sizes[0] = leafCount;
+        for (int i = 1; i < height; i++) {
+            long start = MerkleMetrics.start();
+            byte[] child = levels[i - 1];
+            int childSize = sizes[i - 1];
+            int size = (childSize + 1) / 2;
+            byte[] parent = FlatMerkleTree.allocateLevel(size, hashLength);
+            hasher.hashNodes(child, 0, childSize / 2, parent, 0);
+            if (childSize % 2 == 1) {
+                // duplicate the last node of an odd level
+                int last = (childSize - 1) * hashLength;
+                hasher.hashNode(child, last, child, last, parent, (size - 1) * hashLength);
+            }
+            levels[i] = parent;
+            sizes[i] = size;
+            MerkleMetrics.stop(MerkleMetrics.Phase.LEVEL, "MerkleTree", i, start, size);
+        }
+        return new FlatMerkleTree(levels, sizes, hashLength);
+    }
+
     private static byte[][] duplicateLastNode(byte[][] level) {
         byte[][] extended = new byte[level.length + 1][];
         System.arraycopy(level, 0, extended, 0, level.length);
@@ -162,13 +312,6 @@ public class MerkleTree {
         return extended;
     }
 
-    private static byte[] concat(byte[] a, byte[] b) {
-        byte[] merged = new byte[a.length + b.length];
-        System.arraycopy(a, 0, merged, 0, a.length);
-        System.arraycopy(b, 0, merged, a.length, b.length);
-        return merged;
-    }
-
     public static byte[][][] convertTo3D(List<byte[][]> list) {
         byte[][][] array = new byte[list.size()][][];
         for (int i = 0; i < list.size(); i++) {
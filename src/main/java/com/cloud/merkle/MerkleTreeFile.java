@@ -0,0 +1,203 @@
+package com.cloud.merkle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+// on-disk tree, all integers big-endian
+//   header: "MKTF" | version u8 | hash length u8 | algorithm length u8 | reserved u8 | leaf count i32 | level count i32
+//           | algorithm (ASCII) | zero padding to a multiple of 8 | per level: offset of its first node i64
+//   body:   each level's nodes back to back from its offset, leaves first, root last
+// the magic is written when the writer closes, so a file left by a crashed writer does not open
+public class MerkleTreeFile {
+    static final int MAGIC = 0x4D4B5446;
+    static final int VERSION = 1;
+    static final int FIXED_HEADER = 16;
+
+    public static class Header {
+        public final String algorithm;
+        public final int hashLength;
+        public final int leafCount;
+        final int[] sizes;
+        final long[] offsets;
+
+        Header(String algorithm, int hashLength, int leafCount, long[] offsets) {
+            this.algorithm = algorithm;
+            this.hashLength = hashLength;
+            this.leafCount = leafCount;
+            this.offsets = offsets;
+            this.sizes = new int[offsets.length];
+            int size = leafCount;
+            for (int l = 0; l < sizes.length; l++) {
+                sizes[l] = size;
+                size = (size + 1) / 2;
+            }
+        }
+
+        public int height() {
+            return sizes.length;
+        }
+
+        public int levelSize(int level) {
+            return sizes[level];
+        }
+
+        public long levelOffset(int level) {
+            return offsets[level];
+        }
+
+        // bytes from the start of the file to the end of the root
+        public long fileLength() {
+            return offsets[offsets.length - 1] + hashLength;
+        }
+    }
+
+    // levels laid out back to back right after the header
+    static Header layout(String algorithm, int hashLength, int leafCount) {
+        if (leafCount < 1) {
+            throw new IllegalArgumentException("Need at least one leaf");
+        }
+        if (hashLength < 1 || hashLength > 255) {
+            throw new IllegalArgumentException("Bad hash length " + hashLength);
+        }
+        int levels = FlatMerkleTree.levelCount(leafCount);
+        long[] offsets = new long[levels];
+        long offset = headerLength(algorithm, levels);
+        int size = leafCount;
+        for (int l = 0; l < levels; l++) {
+            offsets[l] = offset;
+            offset += (long) size * hashLength;
+            size = (size + 1) / 2;
+        }
+        return new Header(algorithm, hashLength, leafCount, offsets);
+    }
+
+    static int headerLength(String algorithm, int levels) {
+        return offsetTable(algorithm.length()) + 8 * levels;
+    }
+
+    // start of the level offsets, 8-byte aligned
+    static int offsetTable(int nameLength) {
+        return (FIXED_HEADER + nameLength + 7) & ~7;
+    }
+
+    static ByteBuffer encodeHeader(Header header, boolean complete) {
+        byte[] name = header.algorithm.getBytes(StandardCharsets.US_ASCII);
+        if (name.length > 255) {
+            throw new IllegalArgumentException("Algorithm name too long: " + header.algorithm);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength(header.algorithm, header.height()));
+        buffer.putInt(complete ? MAGIC : 0).put((byte) VERSION).put((byte) header.hashLength).put((byte) name.length)
+                .put((byte) 0).putInt(header.leafCount).putInt(header.height()).put(name);
+        buffer.position(offsetTable(name.length));
+        for (long offset : header.offsets) {
+            buffer.putLong(offset);
+        }
+        return buffer.flip();
+    }
+
+    // fixed is the first FIXED_HEADER bytes, rest everything after them up to the last level offset
+    static Header decodeHeader(ByteBuffer fixed, ByteBuffer rest, long fileLength) {
+        if (fixed.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a complete Merkle tree file");
+        }
+        int version = fixed.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported tree file version " + version);
+        }
+        int hashLength = fixed.get() & 0xFF;
+        byte[] name = new byte[fixed.get() & 0xFF];
+        fixed.get();
+        int leafCount = fixed.getInt();
+        int levels = fixed.getInt();
+        if (leafCount < 1 || hashLength < 1 || levels != FlatMerkleTree.levelCount(leafCount)) {
+            throw new IllegalArgumentException("Bad tree file header: " + leafCount + " leaves in " + levels + " levels");
+        }
+        rest.get(name);
+        rest.position(offsetTable(name.length) - FIXED_HEADER);
+        long[] offsets = new long[levels];
+        for (int l = 0; l < levels; l++) {
+            offsets[l] = rest.getLong();
+        }
+        Header header = new Header(new String(name, StandardCharsets.US_ASCII), hashLength, leafCount, offsets);
+        long headerEnd = headerLength(header.algorithm, levels);
+        for (int l = 0; l < levels; l++) {
+            long end = offsets[l] + (long) header.sizes[l] * hashLength;
+            if (offsets[l] < headerEnd || end > fileLength) {
+                throw new IllegalArgumentException("Level " + l + " lies outside the tree file");
+            }
+        }
+        return header;
+    }
+
+    public static void write(Path path, FlatMerkleTree tree, String algorithm) throws IOException {
+        try (MerkleTreeWriter writer = new MerkleTreeWriter(path, tree.leafCount(), tree.hashLength(), algorithm)) {
+            for (int l = 0; l < tree.height(); l++) {
+                writer.writeLevel(l, tree.level(l));
+            }
+        }
+    }
+
+    // tree as returned by MerkleTree.generateMerkleTree
+    public static void write(Path path, byte[][][] tree, String algorithm) throws IOException {
+        try (MerkleTreeWriter writer = new MerkleTreeWriter(path, tree[0].length, tree[0][0].length, algorithm)) {
+            for (int l = 0; l < tree.length; l++) {
+                for (byte[] node : tree[l]) {
+                    writer.append(l, node, 0, 1);
+                }
+            }
+        }
+    }
+
+    // builds the canonical tree over leafCount flat leaf hashes level by level, each level goes to disk as soon
+    // as it is hashed and only two levels are held in memory; returns the root
+    public static byte[] build(Path path, byte[] leaves, int leafCount, MerkleHasher hasher) throws IOException {
+        int hashLength = hasher.digestLength();
+        try (MerkleTreeWriter writer = new MerkleTreeWriter(path, leafCount, hashLength, hasher.name())) {
+            byte[] level = leaves;
+            int size = leafCount;
+            writer.writeLevel(0, level);
+            for (int l = 1; size > 1; l++) {
+                int parentSize = (size + 1) / 2;
+                byte[] parents = FlatMerkleTree.allocateLevel(parentSize, hashLength);
+                hasher.hashNodes(level, 0, size / 2, parents, 0);
+                if (size % 2 == 1) {
+                    // duplicate the last node of an odd level
+                    int last = (size - 1) * hashLength;
+                    hasher.hashNode(level, last, level, last, parents, (parentSize - 1) * hashLength);
+                }
+                writer.writeLevel(l, parents);
+                level = parents;
+                size = parentSize;
+            }
+            byte[] root = new byte[hashLength];
+            System.arraycopy(level, 0, root, 0, hashLength);
+            return root;
+        }
+    }
+
+    // same file as build, each level hashed on pool with ParallelMerkleTree
+    public static byte[] build(Path path, byte[] leaves, int leafCount, int threshold, MerkleHasher hasher,
+                               ForkJoinPool pool) throws IOException {
+        int hashLength = hasher.digestLength();
+        try (MerkleTreeWriter writer = new MerkleTreeWriter(path, leafCount, hashLength, hasher.name())) {
+            byte[] level = leaves;
+            int size = leafCount;
+            writer.writeLevel(0, level);
+            for (int l = 1; size > 1; l++) {
+                level = ParallelMerkleTree.buildLevel(level, size, threshold, hasher, pool);
+                size = (size + 1) / 2;
+                writer.writeLevel(l, level);
+            }
+            byte[] root = new byte[hashLength];
+            System.arraycopy(level, 0, root, 0, hashLength);
+            return root;
+        }
+    }
+
+    public static MappedMerkleTree open(Path path) throws IOException {
+        return MappedMerkleTree.open(path);
+    }
+}
@@ -0,0 +1,408 @@
+package com.cloud.merkle;
+
+import com.cloud.merkle.DataFlowPipeline.Node;
+import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.sdk.util.VarInt;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+// canonical tree over leaf hashes numbered by seq, one Combine.perKey per level: level l groups fanOut nodes of
+// level l - 1 under seq / fanOut and its combiner folds sibling pairs as soon as both are known, so partial
+// results are combined before the shuffle and only sub-roots travel after the first level. Every level is one
+// Combine.perKey and so one shuffle, and only as many are built as maxLeaves needs: ceil(log_fanOut(maxLeaves)),
+// at least one. A run with more leaves than maxLeaves fails in the top level instead of returning several roots.
+public class MerkleTreeTransform extends PTransform<PCollection<Node>, PCollection<Node>> {
+    private final String algorithm;
+    private final int fanOut;
+    private final long maxLeaves;
+    // NodeCoder and SubtreeCoder on every stage, Java serialization only to compare against
+    private boolean compactCoders = true;
+
+    public MerkleTreeTransform(String algorithm, int fanOut, long maxLeaves) {
+        if (fanOut < 2 || Integer.bitCount(fanOut) != 1) {
+            throw new IllegalArgumentException("Fan-out must be a power of two of at least 2, got " + fanOut);
+        }
+        // seq is an int
+        if (maxLeaves < 1 || maxLeaves > 1L << 31) {
+            throw new IllegalArgumentException("Bad maximum input size " + maxLeaves);
+        }
+        this.algorithm = algorithm;
+        this.fanOut = fanOut;
+        this.maxLeaves = maxLeaves;
+    }
+
+    public MerkleTreeTransform withJavaSerialization() {
+        this.compactCoders = false;
+        return this;
+    }
+
+    public Coder<Node> nodeCoder() {
+        return compactCoders ? NodeCoder.of() : SerializableCoder.of(Node.class);
+    }
+
+    // Combine.perKey stages, and so shuffles, built for maxLeaves
+    public int levels() {
+        int perLevel = Integer.numberOfTrailingZeros(fanOut);
+        int height = 64 - Long.numberOfLeadingZeros(maxLeaves - 1);
+        return Math.max(1, (height + perLevel - 1) / perLevel);
+    }
+
+    public Coder<Subtree> accumulatorCoder() {
+        return compactCoders ? SubtreeCoder.of() : SerializableCoder.of(Subtree.class);
+    }
+
+    public Coder<KV<Integer, Node>> keyedCoder() {
+        return KvCoder.of(VarIntCoder.of(), nodeCoder());
+    }
+
+    @Override
+    public PCollection<Node> expand(PCollection<Node> leaves) {
+        return combineLevels(leaves.apply("Key Level 0", ParDo.of(new DataFlowPipeline.ToKV(fanOut)))
+                .setCoder(keyedCoder()));
+    }
+
+    // same tree over leaves that arrive keyed by seq / fanOut, e.g. from DataFlowPipeline.ParseHashFn
+    public PTransform<PCollection<KV<Integer, Node>>, PCollection<Node>> keyed() {
+        return new PTransform<PCollection<KV<Integer, Node>>, PCollection<Node>>() {
+            @Override
+            public PCollection<Node> expand(PCollection<KV<Integer, Node>> leaves) {
+                return combineLevels(leaves);
+            }
+        };
+    }
+
+    private PCollection<Node> combineLevels(PCollection<KV<Integer, Node>> leaves) {
+        int perLevel = Integer.numberOfTrailingZeros(fanOut);
+        Coder<Node> nodeCoder = nodeCoder();
+        Coder<KV<Integer, Node>> keyedCoder = keyedCoder();
+        PCollection<KV<Integer, Node>> keyed = leaves;
+        PCollection<Node> nodes = null;
+        int levels = levels();
+        for (int l = 0; l < levels; l++) {
+            if (l > 0) {
+                keyed = nodes.apply("Key Level " + l, ParDo.of(new DataFlowPipeline.ToKV(fanOut)))
+                        .setCoder(keyedCoder);
+            }
+            nodes = keyed.apply("Combine Level " + l, Combine.<Integer, Node, Node>perKey(
+                            new SubtreeFn(algorithm, fanOut, l * perLevel, accumulatorCoder())))
+                    .setCoder(keyedCoder)
+                    .apply("Unkey Level " + l, ParDo.of(new ToNode(l == levels - 1 ? maxLeaves : -1)))
+                    .setCoder(nodeCoder);
+        }
+        return nodes;
+    }
+
+    // root of one group, its children are full subtrees of childHeight except for the last node of the level
+    public static class SubtreeFn extends Combine.CombineFn<Node, Subtree, Node> {
+        private final String algorithm;
+        private final int fanOut;
+        private final int childHeight;
+        private final Coder<Subtree> accumulatorCoder;
+        private transient MerkleHasher hasher;
+
+        public SubtreeFn(String algorithm, int fanOut, int childHeight) {
+            this(algorithm, fanOut, childHeight, SubtreeCoder.of());
+        }
+
+        public SubtreeFn(String algorithm, int fanOut, int childHeight, Coder<Subtree> accumulatorCoder) {
+            this.algorithm = algorithm;
+            this.fanOut = fanOut;
+            this.childHeight = childHeight;
+            this.accumulatorCoder = accumulatorCoder;
+        }
+
+        @Override
+        public Subtree createAccumulator() {
+            return new Subtree();
+        }
+
+        @Override
+        public Subtree addInput(Subtree subtree, Node node) {
+            byte[] hash = node.data;
+            int height = node.height;
+            // a short last child is lifted to the height of its siblings, a child alone in its level stays as it is
+            if (node.seq > 0 && height < childHeight) {
+                hash = MerkleTree.liftRoot(hash, height, childHeight, hasher());
+                height = childHeight;
+            }
+            subtree.add(0, node.seq % fanOut, hash, hasher());
+            subtree.count++;
+            subtree.height = Math.max(subtree.height, height);
+            return subtree;
+        }
+
+        @Override
+        public Subtree mergeAccumulators(Iterable<Subtree> subtrees) {
+            Subtree merged = new Subtree();
+            for (Subtree subtree : subtrees) {
+                for (Map.Entry<Long, byte[]> node : subtree.pending.entrySet()) {
+                    long key = node.getKey();
+                    merged.add((int) (key >>> 32), (int) key, node.getValue(), hasher());
+                }
+                merged.count += subtree.count;
+                merged.height = Math.max(merged.height, subtree.height);
+            }
+            return merged;
+        }
+
+        @Override
+        public Node extractOutput(Subtree subtree) {
+            // what is left pending is the right edge, which pairs nodes with themselves once the group size is known
+            AlignedRootAccumulator root = new AlignedRootAccumulator(subtree.count, hasher());
+            for (Map.Entry<Long, byte[]> node : subtree.pending.entrySet()) {
+                long key = node.getKey();
+                root.add((int) (key >>> 32), (int) key, node.getValue());
+            }
+            if (!root.isComplete()) {
+                throw new IllegalStateException("Group of " + subtree.count + " nodes does not cover positions 0.."
+                        + (subtree.count - 1));
+            }
+            Node res = new Node();
+            res.data = root.awaitRoot();
+            res.height = subtree.height + MerkleTree.treeHeight(subtree.count);
+            return res;
+        }
+
+        @Override
+        public Coder<Subtree> getAccumulatorCoder(CoderRegistry registry, Coder<Node> inputCoder) {
+            return accumulatorCoder;
+        }
+
+        private MerkleHasher hasher() {
+            if (hasher == null) {
+                hasher = MerkleHasher.of(algorithm);
+            }
+            return hasher;
+        }
+    }
+
+    // nodes of a partly combined group whose sibling has not been seen yet, keyed by level << 32 | index
+    public static class Subtree implements Serializable {
+        final Map<Long, byte[]> pending = new HashMap<>();
+        int count;
+        int height;
+
+        void add(int level, int index, byte[] hash, MerkleHasher hasher) {
+            while (true) {
+                byte[] sibling = pending.remove(key(level, index ^ 1));
+                if (sibling == null) {
+                    pending.put(key(level, index), hash);
+                    return;
+                }
+                byte[] parent = new byte[hasher.digestLength()];
+                if ((index & 1) == 0) {
+                    hasher.hashNode(hash, sibling, parent);
+                } else {
+                    hasher.hashNode(sibling, hash, parent);
+                }
+                hash = parent;
+                index >>= 1;
+                level++;
+            }
+        }
+
+        private static long key(int level, int index) {
+            return (long) level << 32 | index;
+        }
+    }
+
+    // varint count | varint height | varint pending | per pending node: varint level | varint index | varint length | hash
+    public static class SubtreeCoder extends AtomicCoder<Subtree> {
+        private static final SubtreeCoder INSTANCE = new SubtreeCoder();
+
+        public static SubtreeCoder of() {
+            return INSTANCE;
+        }
+
+        private SubtreeCoder() {
+        }
+
+        @Override
+        public void encode(Subtree subtree, OutputStream out) throws IOException {
+            VarInt.encode(subtree.count, out);
+            VarInt.encode(subtree.height, out);
+            VarInt.encode(subtree.pending.size(), out);
+            for (Map.Entry<Long, byte[]> node : subtree.pending.entrySet()) {
+                long key = node.getKey();
+                VarInt.encode((int) (key >>> 32), out);
+                VarInt.encode((int) key, out);
+                VarInt.encode(node.getValue().length, out);
+                out.write(node.getValue());
+            }
+        }
+
+        @Override
+        public Subtree decode(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            Subtree subtree = new Subtree();
+            subtree.count = VarInt.decodeInt(in);
+            subtree.height = VarInt.decodeInt(in);
+            int pending = VarInt.decodeInt(in);
+            if (pending < 0) {
+                throw new CoderException("Bad pending node count " + pending);
+            }
+            for (int i = 0; i < pending; i++) {
+                int level = VarInt.decodeInt(in);
+                int index = VarInt.decodeInt(in);
+                int length = VarInt.decodeInt(in);
+                if (length < 0 || length > 255) {
+                    throw new CoderException("Bad hash length " + length);
+                }
+                byte[] hash = new byte[length];
+                data.readFully(hash);
+                subtree.pending.put(Subtree.key(level, index), hash);
+            }
+            return subtree;
+        }
+    }
+
+    public static class ToNode extends DoFn<KV<Integer, Node>, Node> {
+        // set on the top level, where any group but 0 means the input outgrew the levels built for maxLeaves
+        private final long maxLeaves;
+
+        public ToNode() {
+            this(-1);
+        }
+
+        public ToNode(long maxLeaves) {
+            this.maxLeaves = maxLeaves;
+        }
+
+        @ProcessElement
+        public void processElement(ProcessContext c) {
+            if (maxLeaves > 0 && c.element().getKey() != 0) {
+                throw new IllegalStateException("More than " + maxLeaves + " leaves, the tree has no level for group "
+                        + c.element().getKey());
+            }
+            Node node = c.element().getValue();
+            Node res = new Node();
+            res.seq = c.element().getKey();
+            res.data = node.data;
+            res.height = node.height;
+            c.output(res);
+        }
+    }
+
+    // SubtreeFn over random groups, with the inputs split into random bundles, each accumulator sent through
+    // SubtreeCoder and merged in random order and grouping, as a runner may; throws on the first group whose root
+    // differs from MerkleTree.generateMerkleTree's over the same leaves
+    public static void checkMergeOrders(SplittableRandom random, int rounds) throws IOException {
+        MerkleHasher hasher = MerkleHasher.SHA_256;
+        for (int round = 0; round < rounds; round++) {
+            int fanOut = 1 << (1 + random.nextInt(10));
+            int count = 1 + random.nextInt(fanOut);
+            int childHeight = random.nextInt(4);
+            // every child covers 2^childHeight leaves, except a short last one, which addInput lifts
+            int lastLeaves = 1 + random.nextInt(1 << childHeight);
+            int leafCount = (count - 1) * (1 << childHeight) + lastLeaves;
+            byte[][] hashes = new byte[leafCount][];
+            for (int i = 0; i < leafCount; i++) {
+                byte[] data = new byte[8];
+                random.nextBytes(data);
+                hashes[i] = hasher.hashLeaf(data);
+            }
+            List<Node> children = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int from = i << childHeight;
+                byte[][] slice = Arrays.copyOfRange(hashes, from, Math.min(leafCount, from + (1 << childHeight)));
+                Node child = new Node();
+                child.seq = i;
+                child.data = MerkleTree.genMerkleRootFromHash(slice, hasher);
+                child.height = MerkleTree.treeHeight(slice.length);
+                children.add(child);
+            }
+            Collections.shuffle(children, new Random(random.nextLong()));
+
+            SubtreeFn fn = new SubtreeFn(hasher.name(), fanOut, childHeight);
+            List<Subtree> accumulators = new ArrayList<>();
+            for (int from = 0; from < count; ) {
+                int to = from + 1 + random.nextInt(count - from);
+                Subtree bundle = fn.createAccumulator();
+                for (Node child : children.subList(from, to)) {
+                    bundle = fn.addInput(bundle, child);
+                }
+                accumulators.add(CoderUtils.clone(SubtreeCoder.of(), bundle));
+                from = to;
+            }
+            while (accumulators.size() > 1) {
+                Collections.shuffle(accumulators, new Random(random.nextLong()));
+                int merged = 2 + random.nextInt(accumulators.size() - 1);
+                List<Subtree> group = new ArrayList<>(accumulators.subList(0, merged));
+                accumulators.subList(0, merged).clear();
+                accumulators.add(CoderUtils.clone(SubtreeCoder.of(), fn.mergeAccumulators(group)));
+            }
+            Node root = fn.extractOutput(accumulators.get(0));
+
+            byte[][][] tree = MerkleTree.generateMerkleTree(hashes, hasher);
+            if (!Arrays.equals(root.data, tree[tree.length - 1][0]) || root.height != MerkleTree.treeHeight(leafCount)) {
+                throw new IllegalStateException("SubtreeFn root differs for " + count + " children of height "
+                        + childHeight + " (" + leafCount + " leaves), fan-out " + fanOut);
+            }
+        }
+    }
+
+    // MerkleTreeTransform [leaves] [fanOut] on the DirectRunner, checked against MerkleTree.genMerkleRootFromHash
+    // after checkMergeOrders; a wrong root fails the pipeline and so the run
+    public static void main(String[] args) throws IOException {
+        int leafCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int fanOut = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        MerkleHasher hasher = MerkleHasher.SHA_256;
+        SplittableRandom random = new SplittableRandom(42);
+        checkMergeOrders(random, 2_000);
+        System.out.println("SubtreeFn roots match over 2000 random merge orders");
+        byte[][] hashes = new byte[leafCount][];
+        List<Node> leaves = new ArrayList<>(leafCount);
+        for (int i = 0; i < leafCount; i++) {
+            byte[] data = new byte[8];
+            random.nextBytes(data);
+            Node leaf = new Node();
+            leaf.seq = i;
+            leaf.data = hasher.hashLeaf(data);
+            hashes[i] = leaf.data;
+            leaves.add(leaf);
+        }
+        byte[] expected = MerkleTree.genMerkleRootFromHash(hashes, hasher);
+
+        Pipeline pipeline = Pipeline.create(PipelineOptionsFactory.fromArgs().create());
+        pipeline.apply("Leaves", Create.of(leaves).withCoder(NodeCoder.of()))
+                .apply("Merkle Tree", new MerkleTreeTransform(hasher.name(), fanOut, leafCount))
+                .apply("Check", ParDo.of(new DoFn<Node, Void>() {
+                    @ProcessElement
+                    public void processElement(ProcessContext c) {
+                        if (!Arrays.equals(c.element().data, expected)) {
+                            throw new IllegalStateException("Root MISMATCH for " + leafCount + " leaves");
+                        }
+                        System.out.println("Root matches for " + leafCount + " leaves, height " + c.element().height);
+                    }
+                }));
+        pipeline.run().waitUntilFinish();
+    }
+}
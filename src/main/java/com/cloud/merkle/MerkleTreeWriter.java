@@ -0,0 +1,113 @@
+package com.cloud.merkle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// streams the levels of a tree into a MerkleTreeFile; every level has a fixed place in the file, so levels can be
+// appended in any order, each one front to back, as soon as a builder produces them
+public class MerkleTreeWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final MerkleTreeFile.Header header;
+    // nodes appended per level so far
+    private final int[] written;
+    // small appends are collected here and go out in one write
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long bufferPosition = -1;
+    private boolean closed;
+
+    public MerkleTreeWriter(Path path, int leafCount, int hashLength, String algorithm) throws IOException {
+        this.header = MerkleTreeFile.layout(algorithm, hashLength, leafCount);
+        this.written = new int[header.height()];
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(MerkleTreeFile.encodeHeader(header, false), 0);
+    }
+
+    public MerkleTreeFile.Header header() {
+        return header;
+    }
+
+    // the whole level at once, nodes holds at least levelSize(level) nodes back to back
+    public void writeLevel(int level, byte[] nodes) throws IOException {
+        append(level, nodes, 0, header.levelSize(level) - written[level]);
+    }
+
+    // the next count nodes of level, taken back to back from nodes[offset..]
+    public void append(int level, byte[] nodes, int offset, int count) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        if (count < 0 || written[level] + count > header.levelSize(level)) {
+            throw new IllegalArgumentException("Level " + level + " holds " + header.levelSize(level) + " nodes, got "
+                    + ((long) written[level] + count));
+        }
+        int hashLength = header.hashLength;
+        int length = count * hashLength;
+        long position = header.levelOffset(level) + (long) written[level] * hashLength;
+        written[level] += count;
+        if (bufferPosition >= 0 && bufferPosition + buffer.position() != position) {
+            flush();
+        }
+        if (length >= BUFFER_SIZE) {
+            flush();
+            writeFully(ByteBuffer.wrap(nodes, offset, length), position);
+            return;
+        }
+        if (length > buffer.remaining()) {
+            flush();
+        }
+        if (bufferPosition < 0) {
+            bufferPosition = position;
+        }
+        buffer.put(nodes, offset, length);
+    }
+
+    public boolean isComplete() {
+        for (int l = 0; l < written.length; l++) {
+            if (written[l] != header.levelSize(l)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // stamps the magic once every level is complete, an incomplete file is left without it
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            if (isComplete()) {
+                channel.force(false);
+                writeFully(MerkleTreeFile.encodeHeader(header, true), 0);
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (bufferPosition >= 0) {
+            buffer.flip();
+            writeFully(buffer, bufferPosition);
+            buffer.clear();
+            bufferPosition = -1;
+        }
+    }
+
+    private void writeFully(ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.cloud.merkle;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// in-memory MerkleMetrics.Registry: per phase, source and level a call count, total time, items and a latency
+// histogram, plus the counters; toString is the report the orchestrator and workers print
+public class MetricsRegistry implements MerkleMetrics.Registry {
+    // durations in power-of-two buckets, bucket b holds [2^b, 2^(b+1)) nanoseconds
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+
+        public void record(long nanos) {
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+            count.increment();
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        // upper bound of the bucket holding quantile q, -1 while nothing was recorded
+        public long quantile(double q) {
+            long total = count();
+            if (total == 0) {
+                return -1;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return b == 63 ? Long.MAX_VALUE : (1L << (b + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public static class Timer {
+        final LongAdder nanos = new LongAdder();
+        final LongAdder items = new LongAdder();
+        final Histogram latencies = new Histogram();
+
+        public long count() {
+            return latencies.count();
+        }
+
+        public long totalNanos() {
+            return nanos.sum();
+        }
+
+        public long items() {
+            return items.sum();
+        }
+
+        public Histogram latencies() {
+            return latencies;
+        }
+
+        // items per second of time spent in the phase, hashes/sec for the hashing phases
+        public double itemsPerSecond() {
+            long total = totalNanos();
+            return total == 0 ? 0 : items() * 1e9 / total;
+        }
+    }
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<MerkleMetrics.Counter, LongAdder> counters = new EnumMap<>(MerkleMetrics.Counter.class);
+
+    public MetricsRegistry() {
+        for (MerkleMetrics.Counter counter : MerkleMetrics.Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    @Override
+    public void record(MerkleMetrics.Phase phase, String source, int level, long nanos, long items) {
+        Timer timer = timer(phase, source, level);
+        timer.nanos.add(nanos);
+        timer.items.add(items);
+        timer.latencies.record(nanos);
+    }
+
+    @Override
+    public void count(MerkleMetrics.Counter counter, long delta) {
+        counters.get(counter).add(delta);
+    }
+
+    // phases recorded without a level
+    public Timer timer(MerkleMetrics.Phase phase, String source) {
+        return timer(phase, source, -1);
+    }
+
+    // each level of a builder has its own timer, keyed phase/source/level with the level in two digits so the
+    // report lists levels in order
+    public Timer timer(MerkleMetrics.Phase phase, String source, int level) {
+        String key = level < 0 ? phase + "/" + source : phase + "/" + source + (level < 10 ? "/0" : "/") + level;
+        return timers.computeIfAbsent(key, k -> new Timer());
+    }
+
+    public long counter(MerkleMetrics.Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        timers.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> {
+            Timer timer = entry.getValue();
+            report.append(entry.getKey())
+                    .append(": count=").append(timer.count())
+                    .append(", totalMillis=").append(timer.totalNanos() / 1_000_000)
+                    .append(", items=").append(timer.items())
+                    .append(", itemsPerSec=").append(Math.round(timer.itemsPerSecond()))
+                    .append(", p50Micros=").append(timer.latencies.quantile(0.5) / 1000)
+                    .append(", p99Micros=").append(timer.latencies.quantile(0.99) / 1000)
+                    .append('\n');
+        });
+        counters.forEach((counter, value) -> report.append(counter).append('=').append(value.sum()).append(", "));
+        report.setLength(report.length() - 2);
+        return report.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package com.cloud.merkle;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class MultiProof {
+    final int leafCount;
+    // sorted, distinct leaf positions covered by the proof
+    final int[] indices;
+    // sibling hashes back to back, in the order the verifier consumes them
+    final byte[] siblings;
+    final int hashLength;
+
+    MultiProof(int leafCount, int[] indices, byte[] siblings, int hashLength) {
+        this.leafCount = leafCount;
+        this.indices = indices;
+        this.siblings = siblings;
+        this.hashLength = hashLength;
+    }
+
+    public int leafCount() {
+        return leafCount;
+    }
+
+    public int[] indices() {
+        return indices.clone();
+    }
+
+    public int siblingCount() {
+        return siblings.length / hashLength;
+    }
+
+    public int hashLength() {
+        return hashLength;
+    }
+
+    public static MultiProof generate(int[] leafIndices, FlatMerkleTree tree) {
+        int hashLength = tree.hashLength();
+        int[] known = sortedDistinct(leafIndices);
+        if (known.length == 0) {
+            throw new IllegalArgumentException("No leaves to prove");
+        }
+        for (int index : known) {
+            if (index < 0 || index >= tree.leafCount()) {
+                throw new IndexOutOfBoundsException("Leaf " + index + " out of range for " + tree.leafCount() + " leaves");
+            }
+        }
+        int[] indices = known.clone();
+        byte[] siblings = new byte[known.length * hashLength];
+        int siblingCount = 0;
+        int count = known.length;
+        for (int l = 0; l < tree.height() - 1; l++) {
+            int size = tree.levelSize(l);
+            int parents = 0;
+            for (int i = 0; i < count; i++) {
+                int index = known[i];
+                int sibling = index ^ 1;
+                if (i + 1 < count && known[i + 1] == sibling) {
+                    // both children are known to the verifier
+                    i++;
+                } else if (sibling < size) {
+                    if ((siblingCount + 1) * hashLength > siblings.length) {
+                        siblings = Arrays.copyOf(siblings, siblings.length * 2);
+                    }
+                    tree.copyNode(l, sibling, siblings, siblingCount * hashLength);
+                    siblingCount++;
+                }
+                // a missing sibling is the padding of an odd level, the verifier pairs the node with itself
+                known[parents++] = index >> 1;
+            }
+            count = parents;
+        }
+        return new MultiProof(tree.leafCount(), indices, Arrays.copyOf(siblings, siblingCount * hashLength), hashLength);
+    }
+
+    // leafHashes[i] is the hash at indices()[i]
+    public byte[] computeRoot(byte[][] leafHashes, MerkleHasher hasher) {
+        if (leafHashes.length != indices.length) {
+            throw new IllegalArgumentException("Expected " + indices.length + " leaf hashes, got " + leafHashes.length);
+        }
+        if (hasher.digestLength() != hashLength) {
+            throw new IllegalArgumentException("Proof hash length does not match " + hasher.name());
+        }
+        int count = indices.length;
+        int[] known = indices.clone();
+        byte[] current = new byte[count * hashLength];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(leafHashes[i], 0, current, i * hashLength, hashLength);
+        }
+        int cursor = 0;
+        int size = leafCount;
+        while (size > 1) {
+            int parents = 0;
+            for (int i = 0; i < count; i++) {
+                int index = known[i];
+                int sibling = index ^ 1;
+                int out = parents * hashLength;
+                int self = i * hashLength;
+                if (i + 1 < count && known[i + 1] == sibling) {
+                    hasher.hashNode(current, self, current, self + hashLength, current, out);
+                    i++;
+                } else if (sibling >= size) {
+                    hasher.hashNode(current, self, current, self, current, out);
+                } else {
+                    if (cursor + hashLength > siblings.length) {
+                        throw new IllegalArgumentException("Proof is missing sibling hashes");
+                    }
+                    if ((index & 1) == 0) {
+                        hasher.hashNode(current, self, siblings, cursor, current, out);
+                    } else {
+                        hasher.hashNode(siblings, cursor, current, self, current, out);
+                    }
+                    cursor += hashLength;
+                }
+                known[parents++] = index >> 1;
+            }
+            count = parents;
+            size = (size + 1) / 2;
+        }
+        if (cursor != siblings.length) {
+            throw new IllegalArgumentException("Proof has unused sibling hashes");
+        }
+        return Arrays.copyOf(current, hashLength);
+    }
+
+    public boolean verify(byte[] root, byte[][] leafHashes, MerkleHasher hasher) {
+        return Arrays.equals(root, computeRoot(leafHashes, hasher));
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 4 * indices.length + siblings.length);
+        buffer.putInt(hashLength).putInt(leafCount).putInt(indices.length);
+        for (int index : indices) {
+            buffer.putInt(index);
+        }
+        buffer.putInt(siblings.length / hashLength).put(siblings);
+        return buffer.array();
+    }
+
+    public static MultiProof fromByteArray(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int hashLength = buffer.getInt();
+        int leafCount = buffer.getInt();
+        int[] indices = new int[buffer.getInt()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = buffer.getInt();
+        }
+        byte[] siblings = new byte[buffer.getInt() * hashLength];
+        buffer.get(siblings);
+        return new MultiProof(leafCount, indices, siblings, hashLength);
+    }
+
+    private static int[] sortedDistinct(int[] values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+}
@@ -0,0 +1,63 @@
+package com.cloud.merkle;
+
+import com.cloud.merkle.DataFlowPipeline.Node;
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.util.VarInt;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// varint seq | varint height | varint length | data, so a 32-byte hash costs 35 bytes for seq < 2^14
+// instead of a Java serialization stream with class descriptors; raw lines use the same length prefix
+public class NodeCoder extends AtomicCoder<Node> {
+    private static final NodeCoder INSTANCE = new NodeCoder();
+    // a length past this is a corrupt stream, not a line
+    private static final int MAX_DATA = 1 << 26;
+
+    public static NodeCoder of() {
+        return INSTANCE;
+    }
+
+    private NodeCoder() {
+    }
+
+    @Override
+    public void encode(Node node, OutputStream out) throws IOException {
+        if (node == null) {
+            throw new CoderException("Cannot encode a null Node");
+        }
+        VarInt.encode(node.seq, out);
+        VarInt.encode(node.height, out);
+        VarInt.encode(node.data.length, out);
+        out.write(node.data);
+    }
+
+    @Override
+    public Node decode(InputStream in) throws IOException {
+        Node node = new Node();
+        node.seq = VarInt.decodeInt(in);
+        node.height = VarInt.decodeInt(in);
+        int length = VarInt.decodeInt(in);
+        if (length < 0 || length > MAX_DATA) {
+            throw new CoderException("Bad Node data length " + length);
+        }
+        node.data = new byte[length];
+        new DataInputStream(in).readFully(node.data);
+        return node;
+    }
+
+    // Beam sizes elements for splitting and progress, the size is known without encoding
+    @Override
+    public boolean isRegisterByteSizeObserverCheap(Node node) {
+        return true;
+    }
+
+    @Override
+    protected long getEncodedElementByteSize(Node node) {
+        return VarInt.getLength(node.seq & 0xFFFFFFFFL) + VarInt.getLength(node.height & 0xFFFFFFFFL)
+                + VarInt.getLength(node.data.length) + node.data.length;
+    }
+}
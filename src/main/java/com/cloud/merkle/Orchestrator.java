@@ -1,11 +1,12 @@
 package com.cloud.merkle;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
@@ -20,10 +21,14 @@ public class Orchestrator {
 
     public static String LAMBDA_URL = "https://h2f4g6imsmua54grka7n7lpldy0goljp.lambda-url.us-east-1.on.aws/";
     private static final int MAX_CONCURRENT_REQUESTS = 300;
+    static final int CHUNK_SIZE = 8;
     private static final Semaphore semaphore = new Semaphore(MAX_CONCURRENT_REQUESTS);
     private static final HttpClient client = HttpClient.newHttpClient();
+    // sub-roots of earlier runs, keyed by the S3 ETag of the input; null turns caching off
+    public static SubRootCache SUB_ROOT_CACHE =
+            new SubRootCache(1 << 16, Path.of(System.getProperty("java.io.tmpdir"), "merkle-subroots"));
 
-    public static void main(String[] args) throws NoSuchAlgorithmException {
+    public static void main(String[] args) {
 //        int[] workers = {32, 64, 128};
 //        int[] linesInFileLog2 = {20, 21, 22, 23, 24, 25};
 //        int[] workers = {32};
@@ -31,6 +36,11 @@ public class Orchestrator {
         int[] numLines = {1_000_000, 1_000_000, 5_000_000, 20_000_000};
 //        int[] chunksPerWorker = {1024, 2048, 4096, 8192, 16384, 32768, 65536, 131072, 262144};
         int[] chunksPerWorker = {16384};
+        String mode = args.length > 0 ? args[0] : "";
+        if (args.length > 1 && args[1].equals("nocache")) {
+            SUB_ROOT_CACHE = null;
+        }
+        AdaptiveScheduler scheduler = new AdaptiveScheduler(10, 20, MAX_CONCURRENT_REQUESTS, 32);
 
         for (var c: chunksPerWorker) {
             out.println("** Chunks per worker: " + c + "**");
@@ -40,10 +50,22 @@ public class Orchestrator {
                 out.println("\t File: " + fileName);
 //                out.println("\t Chunks per worker: " + lines/numWorker);
                 Instant start = Instant.now();
-                var rootHash = constructMerkleTree(fileName, c, lines);
+                String rootHash;
+                if (mode.equals("streaming")) {
+                    rootHash = constructMerkleTreeStreaming(fileName, c, lines, MerkleHasher.SHA_256, MAX_CONCURRENT_REQUESTS);
+                } else if (mode.equals("adaptive")) {
+                    rootHash = constructMerkleTreeAdaptive(fileName, lines, MerkleHasher.SHA_256, scheduler);
+                } else if (mode.equals("batched")) {
+                    rootHash = constructMerkleTreeBatched(fileName, c, lines, MerkleHasher.SHA_256, 32);
+                } else {
+                    rootHash = constructMerkleTree(fileName, c, lines);
+                }
                 out.println("\t Calculated root hash: " + rootHash);
                 Instant end = Instant.now();
                 out.println("\t Time taken: " + Duration.between(start,end).toMillis());
+                if (MerkleMetrics.registry() != null) {
+                    out.println("\t Metrics: " + MerkleMetrics.registry());
+                }
                 out.println();
             }
             out.println();
@@ -51,23 +73,41 @@ public class Orchestrator {
         }
     }
 
-    public static String constructMerkleTree(String fileName, int chunksPerWorker, int totalChunks) throws NoSuchAlgorithmException {
+    public static String constructMerkleTree(String fileName, int chunksPerWorker, int totalChunks) {
+        return constructMerkleTree(fileName, chunksPerWorker, totalChunks, MerkleHasher.SHA_256);
+    }
+
+    public static String constructMerkleTree(String fileName, int chunksPerWorker, int totalChunks, MerkleHasher hasher) {
 //        int totalChunks = 1 << totalLinesLogBase2;  // 2^20 lines = 1,048,576 lines
 //        int chunksPerWorker = totalChunks / numWorkers; // Each worker processes 16,384 lines
+        if (Integer.bitCount(chunksPerWorker) != 1) {
+            throw new IllegalArgumentException("Chunks per worker must be a power of two, got " + chunksPerWorker);
+        }
         int workers = (int) Math.ceil((double) totalChunks / chunksPerWorker);
         out.println("\t Workers: " + workers);
 
         HttpClient client = HttpClient.newHttpClient();
+        SubRootCache cache = SUB_ROOT_CACHE;
+        String version = cache == null ? null : s3Version(fileName);
+        if (cache != null) {
+            cache.invalidate(fileName, version);
+        }
 
         // Create a list of asynchronous HTTP requests
         List<CompletableFuture<String>> futures = IntStream.range(0, workers)
                 .mapToObj(i -> {
                     int skip = i * chunksPerWorker;
-                    // Prepare JSON payload with appropriate "skip" and "take" values
-                    String jsonPayload = String.format(
-                            "{\"fileName\":\"%s\", \"chunkSize\":8, \"skip\":%d, \"take\":%d}",
-                            fileName, skip, chunksPerWorker
-                    );
+                    int take = Math.min(chunksPerWorker, totalChunks - skip);
+                    // an unchanged slice costs no call at all
+                    SubRootCache.Key key = cache == null ? null
+                            : new SubRootCache.Key(fileName, version, CHUNK_SIZE, skip, take, hasher.name());
+                    byte[] cached = key == null ? null : cache.get(key);
+                    if (cached != null) {
+                        MerkleMetrics.count(MerkleMetrics.Counter.CACHE_HITS, 1);
+                        return CompletableFuture.completedFuture(java.util.HexFormat.of().formatHex(cached));
+                    }
+                    // Prepare JSON payload with appropriate "skip" and "take" values, the last slice only takes what is left
+                    String jsonPayload = jsonPayload(fileName, skip, take, hasher);
 
                     HttpRequest request = HttpRequest.newBuilder()
                             .uri(URI.create(LAMBDA_URL))
@@ -81,9 +121,18 @@ public class Orchestrator {
                         throw new RuntimeException(e);
                     }
                     // Send request asynchronously and extract the response body (the hex hash string)
+                    long start = MerkleMetrics.start();
                     return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                            .thenApply(HttpResponse::body)
-                            .whenComplete((response, throwable) -> semaphore.release());
+                            .thenApply(response -> {
+                                if (key != null && response.statusCode() == 200) {
+                                    cache.put(key, java.util.HexFormat.of().parseHex(response.body().trim()));
+                                }
+                                return response.body();
+                            })
+                            .whenComplete((response, throwable) -> {
+                                semaphore.release();
+                                MerkleMetrics.stop(MerkleMetrics.Phase.REQUEST, "Orchestrator", start, 1);
+                            });
                 })
                 .toList();
 
@@ -100,10 +149,68 @@ public class Orchestrator {
 
         byte[][] subTreeHashes = (byte[][]) hashList.stream().map(h -> java.util.HexFormat.of().parseHex(h)).toArray(byte[][]::new);
 
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[][][] tree = MerkleTree.generateMerkleTree(subTreeHashes, md);
+        // same root as a single node building the tree over all totalChunks leaves
+        byte[] root = MerkleTree.combineSubRoots(subTreeHashes, chunksPerWorker, totalChunks, hasher);
 
-        return java.util.HexFormat.of().formatHex(tree[tree.length-1][0]);
+        return java.util.HexFormat.of().formatHex(root);
+    }
+
+    // virtual thread per call and sub-roots folded on arrival, see StreamingOrchestrator
+    public static String constructMerkleTreeStreaming(String fileName, int chunksPerWorker, int totalChunks,
+                                                      MerkleHasher hasher, int maxConcurrentRequests) {
+        return withCache(new StreamingOrchestrator(LAMBDA_URL, maxConcurrentRequests, hasher))
+                .constructMerkleTree(fileName, chunksPerWorker, totalChunks);
+    }
+
+    // rangesPerCall slices per worker call in the binary BatchProtocol
+    public static String constructMerkleTreeBatched(String fileName, int chunksPerWorker, int totalChunks,
+                                                    MerkleHasher hasher, int rangesPerCall) {
+        return withCache(new StreamingOrchestrator(LAMBDA_URL, MAX_CONCURRENT_REQUESTS, hasher))
+                .withBinaryBatches(rangesPerCall)
+                .constructMerkleTree(fileName, chunksPerWorker, totalChunks);
+    }
+
+    // slice sizes adapted to the observed call latency, reuse the scheduler across runs so its model carries over
+    public static String constructMerkleTreeAdaptive(String fileName, int totalChunks, MerkleHasher hasher,
+                                                     AdaptiveScheduler scheduler) {
+        StreamingOrchestrator orchestrator = withCache(new StreamingOrchestrator(LAMBDA_URL, MAX_CONCURRENT_REQUESTS, hasher));
+        String root = orchestrator.constructMerkleTreeAdaptive(fileName, totalChunks, scheduler);
+        out.println("\t Run: " + orchestrator.stats());
+        out.println("\t Scheduler: " + scheduler.summary());
+        return root;
+    }
+
+    private static StreamingOrchestrator withCache(StreamingOrchestrator orchestrator) {
+        SubRootCache cache = SUB_ROOT_CACHE;
+        return cache == null ? orchestrator : orchestrator.withCache(cache, Orchestrator::s3Version);
+    }
+
+    // ETag of the input object in S3, the version its sub-roots are cached under
+    public static String s3Version(String fileName) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(LambdaWorker.S3_URL + fileName))
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("S3 returned " + response.statusCode() + " for " + fileName);
+            }
+            return response.headers().firstValue("ETag")
+                    .orElseThrow(() -> new IllegalStateException("No ETag for " + fileName));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String jsonPayload(String fileName, int skip, int take, MerkleHasher hasher) {
+        return String.format(
+                "{\"fileName\":\"%s\", \"chunkSize\":%d, \"skip\":%d, \"take\":%d, \"algorithm\":\"%s\"}",
+                fileName, CHUNK_SIZE, skip, take, hasher.name()
+        );
     }
 
 }
@@ -1,79 +1,125 @@
 package com.cloud.merkle;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RecursiveAction;
 
 public class ParallelMerkleTree {
 
-    public static class HashTask extends RecursiveTask<ILinkedList<byte[]>> {
+    // hashes parents [from, to) of one level straight into their slots of the preallocated parent level
+    public static class LevelTask extends RecursiveAction {
         private final int threshold;
-        private final byte[][] array;
-        private final int start;
-        private final int end;
+        // the child level is either flat (level) or one array per node (rows)
+        private final byte[] level;
+        private final byte[][] rows;
+        private final int size;
+        private final byte[] parents;
+        private final int from;
+        private final int to;
+        private final MerkleHasher hasher;
 
-        HashTask(byte[][] array, int start, int end, int threshold) {
-            this.array = array;
-            this.start = start;
-            this.end = end;
+        LevelTask(byte[] level, byte[][] rows, int size, byte[] parents, int from, int to, int threshold,
+                  MerkleHasher hasher) {
+            this.level = level;
+            this.rows = rows;
+            this.size = size;
+            this.parents = parents;
+            this.from = from;
+            this.to = to;
             this.threshold = threshold;
+            this.hasher = hasher;
         }
 
         @Override
-        protected ILinkedList<byte[]> compute() {
-            if (end - start <= threshold) {
-                try {
-                    MessageDigest md = MessageDigest.getInstance("SHA-256");
-                    ILinkedList<byte[]> res = new ILinkedList<>();
-                    for (int i = start; i < end; i+=2) {
-                        byte[] merged = new byte[64];
-                        System.arraycopy(array[i], 0, merged, 0, 32);
-                        System.arraycopy(array[i + 1], 0, merged, 32, 32);
-                        res.addLast(md.digest(merged));
+        protected void compute() {
+            MerkleMetrics.count(MerkleMetrics.Counter.FORK_JOIN_TASKS, 1);
+            // threshold counts child nodes, as the list based task did
+            if (2L * (to - from) <= threshold || to - from == 1) {
+                int hashLength = hasher.digestLength();
+                int p = from;
+                if (rows == null) {
+                    // whole pairs in one bulk call, which leaves at most the odd last node
+                    int pairs = Math.min(to, size / 2);
+                    if (pairs > from) {
+                        hasher.hashNodes(level, 2 * from * hashLength, pairs - from, parents, from * hashLength);
+                        p = pairs;
                     }
-                    return res;
-                } catch (NoSuchAlgorithmException e) {
-                    e.printStackTrace();
                 }
+                for (; p < to; p++) {
+                    int left = 2 * p;
+                    // the last node of an odd level is paired with itself
+                    int right = left + 1 < size ? left + 1 : left;
+                    if (rows != null) {
+                        hasher.hashNode(rows[left], 0, rows[right], 0, parents, p * hashLength);
+                    } else {
+                        hasher.hashNode(level, left * hashLength, level, right * hashLength, parents, p * hashLength);
+                    }
+                }
+                return;
             }
-            int pairs = (end - start) / 2;
-            HashTask leftTask = new HashTask(array, start, start + (pairs / 2) * 2, threshold);
-            HashTask rightTask = new HashTask(array, start + (pairs / 2) * 2, end, threshold);
-
-            leftTask.fork();
-            ILinkedList<byte[]> right = rightTask.compute();
-            ILinkedList<byte[]> left = leftTask.join();
-            left.addAll(right);
-            return left;
+            int mid = (from + to) >>> 1;
+            invokeAll(new LevelTask(level, rows, size, parents, from, mid, threshold, hasher),
+                    new LevelTask(level, rows, size, parents, mid, to, threshold, hasher));
         }
     }
 
-    public static byte[] genMerkleRootFromRaw(byte[][] data, int threshold) throws NoSuchAlgorithmException {
-        byte[][] hashes = new byte[data.length][32];
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        for (int i = 0; i < data.length; i++) {
-            hashes[i] = md.digest(data[i]);
-        }
-        return genMerkleRootFromHash(hashes, threshold);
+    public static byte[] genMerkleRootFromRaw(byte[][] data, int threshold) {
+        return genMerkleRootFromRaw(data, threshold, MerkleHasher.SHA_256);
+    }
+
+    public static byte[] genMerkleRootFromRaw(byte[][] data, int threshold, MerkleHasher hasher) {
+        return genMerkleRootFromHash(MerkleTree.hashLeaves(data, hasher), threshold, hasher);
     }
 
     public static byte[] genMerkleRootFromHash(byte[][] hashes, int threshold) {
-        int n = (int) (Math.log(hashes.length) / Math.log(2)) + 1;
-        byte[][] hashToProcess = hashes;
-        ForkJoinPool pool = ForkJoinPool.commonPool();
-        for (int i = 1; i < n; i++) {
-            // level i
-            HashTask task = new HashTask(hashToProcess, 0, hashToProcess.length, threshold);
-            ILinkedList<byte[]> res = pool.invoke(task);
+        return genMerkleRootFromHash(hashes, threshold, MerkleHasher.SHA_256);
+    }
 
-            if ((hashToProcess.length / 2) % 2 == 1) {
-                res.addLast(res.tail.value);
-            }
-            byte[][] lv = new byte[res.size][];
-            res.toArray(lv);
-            hashToProcess = lv;
+    public static byte[] genMerkleRootFromHash(byte[][] hashes, int threshold, MerkleHasher hasher) {
+        return genMerkleRoot(null, hashes, hashes.length, threshold, hasher, ForkJoinPool.commonPool());
+    }
+
+    // hashes holds leafCount leaf hashes back to back
+    public static byte[] genMerkleRootFromHash(byte[] hashes, int leafCount, int threshold, MerkleHasher hasher) {
+        return genMerkleRoot(hashes, null, leafCount, threshold, hasher, ForkJoinPool.commonPool());
+    }
+
+    public static byte[] genMerkleRootFromHash(byte[] hashes, int leafCount, int threshold, MerkleHasher hasher,
+                                               ForkJoinPool pool) {
+        return genMerkleRoot(hashes, null, leafCount, threshold, hasher, pool);
+    }
+
+    // parent level of a flat level of size nodes, hashed in parallel on pool
+    public static byte[] buildLevel(byte[] level, int size, int threshold, MerkleHasher hasher, ForkJoinPool pool) {
+        byte[] parents = FlatMerkleTree.allocateLevel((size + 1) / 2, hasher.digestLength());
+        pool.invoke(new LevelTask(level, null, size, parents, 0, (size + 1) / 2, threshold, hasher));
+        return parents;
+    }
+
+    private static byte[] genMerkleRoot(byte[] level, byte[][] rows, int size, int threshold, MerkleHasher hasher,
+                                        ForkJoinPool pool) {
+        if (size == 0) {
+            throw new IllegalArgumentException("No leaves to hash");
+        }
+        int hashLength = hasher.digestLength();
+        // ceil(log2 size) + 1 levels, the canonical tree; floor(log2 size) + 1 stops below the root for any
+        // size that is not a power of two
+        int n = FlatMerkleTree.levelCount(size);
+        for (int i = 1; i < n; i++) {
+            long start = MerkleMetrics.start();
+            int parentSize = (size + 1) / 2;
+            byte[] parents = FlatMerkleTree.allocateLevel(parentSize, hashLength);
+            pool.invoke(new LevelTask(level, rows, size, parents, 0, parentSize, threshold, hasher));
+            MerkleMetrics.stop(MerkleMetrics.Phase.LEVEL, "ParallelMerkleTree", i, start, parentSize);
+            level = parents;
+            rows = null;
+            size = parentSize;
+        }
+        byte[] root = new byte[hashLength];
+        if (rows != null) {
+            System.arraycopy(rows[0], 0, root, 0, hashLength);
+        } else {
+            System.arraycopy(level, 0, root, 0, hashLength);
         }
-        return hashToProcess[0];
+        return root;
     }
 }
@@ -1,79 +1,110 @@
 package com.cloud.merkle;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveTask;
 
 public class RecursiveMerkleTree {
-    // only store the root node of partial trees
+    // root of the aligned subtree over array[offset, offset + 2^height), of which only length leaves exist
     public static class PartialTreeTask extends RecursiveTask<byte[]> {
-        private final int threshold; // 1024 nodes for each partial tree
-        private final int level;
+        private final int threshold; // leaves hashed serially by one task
         private final byte[][] array;
+        private final int offset;
+        private final int length;
+        private final int height;
+        private final MerkleHasher hasher;
 
-        PartialTreeTask(byte[][] array, int level, int threshold) {
+        PartialTreeTask(byte[][] array, int offset, int length, int height, int threshold, MerkleHasher hasher) {
             this.array = array;
+            this.offset = offset;
+            this.length = length;
+            this.height = height;
             this.threshold = threshold;
-            if (level != 0) {
-                this.level =  level;
-            } else {
-                this.level = (int) (Math.log(array.length) / Math.log(2)) + 1;
-            }
-
+            this.hasher = hasher;
         }
+
         @Override
         protected byte[] compute() {
-            if (array.length <= threshold) {
-                // calculate directly with Standard Merkle Tree
-                try {
-                    return MerkleTree.generateMerkleRoot(array, level);
-                } catch (NoSuchAlgorithmException e) {
-
-                }
-            }
-            // 512 pairs for each sub tree
-            List<PartialTreeTask> tasks = new ArrayList<>();
-            int lv = (int) (Math.log(threshold) / Math.log(2)) + 1;
-            int size = array.length;
-            int offset = 0;
-            while (size > 0) {
-                byte[][] sub;
-                if (size < threshold) {
-                    sub = new byte[size][32];
-                } else {
-                    sub = new byte[threshold][32];
-                }
-                System.arraycopy(array, offset, sub, 0, sub.length);
-                tasks.add(new PartialTreeTask(sub, lv, threshold));
-                size -= threshold;
-                offset += threshold;
+            MerkleMetrics.count(MerkleMetrics.Counter.FORK_JOIN_TASKS, 1);
+            if (length <= threshold || height == 0) {
+                return subtreeRoot(array, offset, length, height, hasher);
             }
-            tasks.forEach(ForkJoinTask::fork);
-            byte[][] res = new byte[tasks.size()][32];
-            for (int i = 0; i < tasks.size(); i++) {
-                res[i] = tasks.get(i).join();
+            int half = 1 << (height - 1);
+            if (length <= half) {
+                // nothing on the right, the left subtree root is paired with itself
+                byte[] root = new PartialTreeTask(array, offset, length, height - 1, threshold, hasher).compute();
+                hasher.hashNode(root, root, root);
+                return root;
             }
-            PartialTreeTask finalTask = new PartialTreeTask(res, 0, threshold);
-            return finalTask.compute();
+            PartialTreeTask right = new PartialTreeTask(array, offset + half, length - half, height - 1, threshold, hasher);
+            right.fork();
+            byte[] root = new PartialTreeTask(array, offset, half, height - 1, threshold, hasher).compute();
+            hasher.hashNode(root, right.join(), root);
+            return root;
         }
     }
 
-    public static byte[] genMerkleRootFromRaw(byte[][] data, int threshold) throws NoSuchAlgorithmException {
-        byte[][] hashes = new byte[data.length][32];
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        for (int i = 0; i < data.length; i++) {
-            hashes[i] = md.digest(data[i]);
-        }
-        return genMerkleRootFromHash(hashes, threshold);
+    public static byte[] genMerkleRootFromRaw(byte[][] data, int threshold) {
+        return genMerkleRootFromRaw(data, threshold, MerkleHasher.SHA_256);
+    }
+
+    public static byte[] genMerkleRootFromRaw(byte[][] data, int threshold, MerkleHasher hasher) {
+        return genMerkleRootFromHash(MerkleTree.hashLeaves(data, hasher), threshold, hasher);
     }
 
     public static byte[] genMerkleRootFromHash(byte[][] hashes, int threshold) {
-        ForkJoinPool pool = ForkJoinPool.commonPool();
-        PartialTreeTask task = new PartialTreeTask(hashes, 0, threshold);
-        return pool.invoke(task);
+        return genMerkleRootFromHash(hashes, threshold, MerkleHasher.SHA_256);
+    }
+
+    public static byte[] genMerkleRootFromHash(byte[][] hashes, int threshold, MerkleHasher hasher) {
+        return genMerkleRootFromHash(hashes, threshold, hasher, ForkJoinPool.commonPool());
+    }
+
+    public static byte[] genMerkleRootFromHash(byte[][] hashes, int threshold, MerkleHasher hasher, ForkJoinPool pool) {
+        if (hashes.length == 0) {
+            throw new IllegalArgumentException("No leaves to hash");
+        }
+        int height = 32 - Integer.numberOfLeadingZeros(hashes.length - 1);
+        long start = MerkleMetrics.start();
+        byte[] root = pool.invoke(new PartialTreeTask(hashes, 0, hashes.length, height, Math.max(1, threshold), hasher));
+        // subtrees are reduced depth first, so all levels are one phase
+        MerkleMetrics.stop(MerkleMetrics.Phase.LEVEL, "RecursiveMerkleTree", start, nodesAbove(hashes.length));
+        return root;
+    }
+
+    // parents hashed over leafCount leaves, a subtree without a right half still hashes its root with itself
+    private static long nodesAbove(int leafCount) {
+        long nodes = 0;
+        for (int size = leafCount; size > 1; size = (size + 1) / 2) {
+            nodes += (size + 1) / 2;
+        }
+        return nodes;
+    }
+
+    // serial version of PartialTreeTask, the levels are reduced in one scratch array
+    private static byte[] subtreeRoot(byte[][] array, int offset, int length, int height, MerkleHasher hasher) {
+        int hashLength = hasher.digestLength();
+        byte[] scratch = new byte[Math.max(1, (length + 1) / 2) * hashLength];
+        if (height == 0) {
+            System.arraycopy(array[offset], 0, scratch, 0, hashLength);
+            return scratch;
+        }
+        int size = (length + 1) / 2;
+        for (int p = 0; p < size; p++) {
+            int left = offset + 2 * p;
+            // the last node of an odd level is paired with itself
+            int right = 2 * p + 1 < length ? left + 1 : left;
+            hasher.hashNode(array[left], 0, array[right], 0, scratch, p * hashLength);
+        }
+        for (int h = 1; h < height; h++) {
+            int parents = (size + 1) / 2;
+            for (int p = 0; p < parents; p++) {
+                int left = 2 * p * hashLength;
+                int right = 2 * p + 1 < size ? left + hashLength : left;
+                hasher.hashNode(scratch, left, scratch, right, scratch, p * hashLength);
+            }
+            size = parents;
+        }
+        return scratch.length == hashLength ? scratch : Arrays.copyOf(scratch, hashLength);
     }
 }
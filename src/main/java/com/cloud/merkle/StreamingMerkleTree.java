@@ -0,0 +1,141 @@
+package com.cloud.merkle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// builds the root of generateMerkleTree one leaf at a time, keeping one pending subtree root per level
+public class StreamingMerkleTree {
+    private static final int MAX_LEVELS = 64;
+
+    private final MerkleHasher hasher;
+    private final int hashLength;
+    // pending subtree root of level l at offset l * hashLength when bit l of pendingLevels is set
+    private final byte[] pending;
+    private final byte[] carry;
+    private long pendingLevels;
+    private long leafCount;
+
+    public StreamingMerkleTree(MerkleHasher hasher) {
+        this.hasher = hasher;
+        this.hashLength = hasher.digestLength();
+        this.pending = new byte[MAX_LEVELS * hashLength];
+        this.carry = new byte[hashLength];
+    }
+
+    public long leafCount() {
+        return leafCount;
+    }
+
+    public void addLeaf(byte[] data) {
+        addLeaf(data, 0, data.length);
+    }
+
+    public void addLeaf(byte[] data, int offset, int length) {
+        hasher.hashLeaf(data, offset, length, carry, 0);
+        push();
+    }
+
+    public void addLeafHash(byte[] hash) {
+        addLeafHash(hash, 0);
+    }
+
+    public void addLeafHash(byte[] hash, int offset) {
+        System.arraycopy(hash, offset, carry, 0, hashLength);
+        push();
+    }
+
+    // fixed-size chunks like LambdaWorker.parseData, a trailing partial chunk is ignored
+    public long addChunks(InputStream in, int chunkSize) throws IOException {
+        byte[] buffer = new byte[chunkSize * Math.max(1, 8192 / chunkSize)];
+        long added = 0;
+        int filled = 0;
+        int read;
+        while ((read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += read;
+            int whole = filled - filled % chunkSize;
+            for (int offset = 0; offset < whole; offset += chunkSize) {
+                addLeaf(buffer, offset, chunkSize);
+                added++;
+            }
+            System.arraycopy(buffer, whole, buffer, 0, filled - whole);
+            filled -= whole;
+        }
+        return added;
+    }
+
+    public long addChunks(ReadableByteChannel channel, int chunkSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize * Math.max(1, 8192 / chunkSize));
+        long added = 0;
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.remaining() >= chunkSize) {
+                addLeaf(buffer.array(), buffer.position(), chunkSize);
+                buffer.position(buffer.position() + chunkSize);
+                added++;
+            }
+            buffer.compact();
+        }
+        return added;
+    }
+
+    // one leaf per line, hashed as its UTF-8 bytes like Helper.service does
+    public long addLines(BufferedReader reader) throws IOException {
+        long added = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            addLeaf(line.getBytes(StandardCharsets.UTF_8));
+            added++;
+        }
+        return added;
+    }
+
+    // does not consume the pending state, more leaves can be added afterwards
+    public byte[] getRoot() {
+        if (leafCount == 0) {
+            throw new IllegalStateException("No leaves added");
+        }
+        int top = 63 - Long.numberOfLeadingZeros(pendingLevels);
+        byte[] node = new byte[hashLength];
+        boolean hasNode = false;
+        for (int l = 0; l <= top; l++) {
+            boolean isPending = (pendingLevels & (1L << l)) != 0;
+            int offset = l * hashLength;
+            if (isPending && hasNode) {
+                hasher.hashNode(pending, offset, node, 0, node, 0);
+            } else if (isPending) {
+                System.arraycopy(pending, offset, node, 0, hashLength);
+                if (l < top) {
+                    // last node of an odd level, paired with itself
+                    hasher.hashNode(node, node, node);
+                }
+                hasNode = true;
+            } else if (hasNode) {
+                hasher.hashNode(node, node, node);
+            }
+        }
+        return node;
+    }
+
+    private void push() {
+        int level = 0;
+        while ((pendingLevels & (1L << level)) != 0) {
+            hasher.hashNode(pending, level * hashLength, carry, 0, carry, 0);
+            pendingLevels &= ~(1L << level);
+            level++;
+        }
+        System.arraycopy(carry, 0, pending, level * hashLength, hashLength);
+        pendingLevels |= 1L << level;
+        leafCount++;
+    }
+
+    public void reset() {
+        pendingLevels = 0;
+        leafCount = 0;
+        Arrays.fill(pending, (byte) 0);
+    }
+}
@@ -0,0 +1,495 @@
+package com.cloud.merkle;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// one (virtual) thread per worker call, each sub-root is folded into the upper tree the moment it arrives
+public class StreamingOrchestrator {
+    private final URI endpoint;
+    private final int maxConcurrentRequests;
+    private final MerkleHasher hasher;
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final LatencyTracker latencies = new LatencyTracker(1024);
+    // a call waiting to hedge looks again this often, for a threshold once enough calls completed and for a free
+    // hedge permit
+    private static final long HEDGE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private Duration requestTimeout;
+    private int maxAttempts = 1;
+    private Duration retryBackoff = Duration.ofMillis(100);
+    // hedging is off while hedgeQuantile is 0
+    private double hedgeQuantile;
+    private int hedgeMinSamples;
+    // permits kept out of maxConcurrentRequests for hedges, so calls waiting for a permit never starve them
+    private int hedgePermits;
+    // 0 sends one JSON payload per slice, otherwise that many slices per BatchProtocol call
+    private int rangesPerCall;
+    private SubRootCache cache;
+    private Function<String, String> versions;
+    private RunStats stats = new RunStats();
+
+    public StreamingOrchestrator(String endpoint, int maxConcurrentRequests, MerkleHasher hasher) {
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("Need at least one concurrent request");
+        }
+        this.endpoint = URI.create(endpoint);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.hasher = hasher;
+    }
+
+    // a call without a response after timeout counts as failed and is retried
+    public StreamingOrchestrator withRequestTimeout(Duration timeout) {
+        this.requestTimeout = timeout;
+        return this;
+    }
+
+    // attempt n waits backoff * 2^(n-1), scaled by a random factor in [0.5, 1.5)
+    public StreamingOrchestrator withRetries(int maxAttempts, Duration backoff) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Need at least one attempt");
+        }
+        this.maxAttempts = maxAttempts;
+        this.retryBackoff = backoff;
+        return this;
+    }
+
+    // a second request for the same slice once a call outlives the given latency quantile of completed calls;
+    // a tenth of maxConcurrentRequests, at least one, is reserved for hedges and the rest carries first attempts
+    public StreamingOrchestrator withHedging(double quantile, int minSamples) {
+        if (quantile <= 0 || quantile >= 1) {
+            throw new IllegalArgumentException("Hedging quantile must be in (0, 1)");
+        }
+        if (maxConcurrentRequests < 2) {
+            throw new IllegalArgumentException("Hedging needs at least two concurrent requests");
+        }
+        this.hedgeQuantile = quantile;
+        this.hedgeMinSamples = minSamples;
+        this.hedgePermits = Math.max(1, maxConcurrentRequests / 10);
+        return this;
+    }
+
+    // several slices per call in the binary BatchProtocol, JSON remains the default
+    public StreamingOrchestrator withBinaryBatches(int rangesPerCall) {
+        if (rangesPerCall < 1) {
+            throw new IllegalArgumentException("Need at least one range per call");
+        }
+        this.rangesPerCall = rangesPerCall;
+        return this;
+    }
+
+    // sub-roots of slices already computed for the same version of a file are reused, versions maps a file name
+    // to its current version, e.g. Orchestrator.s3Version
+    public StreamingOrchestrator withCache(SubRootCache cache, Function<String, String> versions) {
+        this.cache = cache;
+        this.versions = versions;
+        return this;
+    }
+
+    // counters of the last constructMerkleTree run
+    public RunStats stats() {
+        return stats;
+    }
+
+    // same slices and root as Orchestrator.constructMerkleTree
+    public String constructMerkleTree(String fileName, int chunksPerWorker, int totalChunks) {
+        if (Integer.bitCount(chunksPerWorker) != 1) {
+            throw new IllegalArgumentException("Chunks per worker must be a power of two, got " + chunksPerWorker);
+        }
+        int workers = (int) Math.ceil((double) totalChunks / chunksPerWorker);
+        int sliceHeight = Integer.numberOfTrailingZeros(chunksPerWorker);
+        long start = System.nanoTime();
+        RunStats run = new RunStats();
+        stats = run;
+        SubRootAccumulator subRoots = new SubRootAccumulator(workers, hasher);
+        // permits are taken inside the worker threads, the caller only submits
+        Semaphore permits = new Semaphore(maxConcurrentRequests - hedgePermits);
+        Semaphore hedges = new Semaphore(hedgePermits);
+        ExecutorService executor = VirtualThreads.newExecutor(maxConcurrentRequests);
+        ExecutorService folder = VirtualThreads.newPlatformExecutor(1);
+        try {
+            String version = version(fileName);
+            // slices of an unchanged file are folded straight from the cache, only the others go out
+            int[] missing = new int[workers];
+            int missingCount = 0;
+            for (int slot = 0; slot < workers; slot++) {
+                int skip = slot * chunksPerWorker;
+                int take = Math.min(chunksPerWorker, totalChunks - skip);
+                byte[] cached = version == null ? null : cache.get(cacheKey(fileName, version, skip, take));
+                if (cached == null) {
+                    missing[missingCount++] = slot;
+                } else {
+                    run.cached.incrementAndGet();
+                    MerkleMetrics.count(MerkleMetrics.Counter.CACHE_HITS, 1);
+                    addSlice(subRoots, slot, cached, take, workers, sliceHeight, run);
+                }
+            }
+            int perCall = Math.max(1, rangesPerCall);
+            for (int first = 0; first < missingCount; first += perCall) {
+                int count = Math.min(perCall, missingCount - first);
+                int[] slots = Arrays.copyOfRange(missing, first, first + count);
+                int[] skips = new int[count];
+                int[] takes = new int[count];
+                for (int i = 0; i < count; i++) {
+                    skips[i] = slots[i] * chunksPerWorker;
+                    takes[i] = Math.min(chunksPerWorker, totalChunks - skips[i]);
+                }
+                byte[] body = requestBody(fileName, skips, takes);
+                executor.execute(() -> {
+                    try {
+                        permits.acquire();
+                        try {
+                            byte[][] roots = fetch(body, count, permits, hedges, run);
+                            for (int i = 0; version != null && i < count; i++) {
+                                cache.put(cacheKey(fileName, version, skips[i], takes[i]), roots[i]);
+                            }
+                            fold(folder, subRoots::fail, () -> {
+                                for (int i = 0; i < count; i++) {
+                                    addSlice(subRoots, slots[i], roots[i], takes[i], workers, sliceHeight, run);
+                                }
+                            });
+                        } finally {
+                            permits.release();
+                        }
+                    } catch (Exception e) {
+                        subRoots.fail(e);
+                    }
+                });
+            }
+            return HexFormat.of().formatHex(subRoots.awaitRoot());
+        } finally {
+            run.wallNanos = System.nanoTime() - start;
+            executor.shutdownNow();
+            folder.shutdownNow();
+        }
+    }
+
+    // a short last slice is lifted to the height of a full one, as in MerkleTree.combineSubRoots
+    private void addSlice(SubRootAccumulator subRoots, int slot, byte[] root, int take, int workers, int sliceHeight,
+                          RunStats run) {
+        byte[] lifted = workers == 1 ? root : MerkleTree.liftRoot(root, MerkleTree.treeHeight(take), sliceHeight, hasher);
+        if (!subRoots.add(slot, lifted)) {
+            run.duplicates.incrementAndGet();
+        }
+    }
+
+    // slice sizes are picked by the scheduler as calls complete, from 2^minLog2 up, each aligned to its position;
+    // the last slice takes only the chunks that exist, so the root is generateMerkleTree's over all totalChunks
+    public String constructMerkleTreeAdaptive(String fileName, int totalChunks, AdaptiveScheduler scheduler) {
+        long start = System.nanoTime();
+        RunStats run = new RunStats();
+        stats = run;
+        AlignedRootAccumulator subRoots = new AlignedRootAccumulator(totalChunks, hasher);
+        Semaphore permits = new Semaphore(maxConcurrentRequests - hedgePermits);
+        Semaphore hedges = new Semaphore(hedgePermits);
+        ExecutorService executor = VirtualThreads.newExecutor(maxConcurrentRequests);
+        ExecutorService folder = VirtualThreads.newPlatformExecutor(1);
+        try {
+            // the cache only hits where the scheduler picks the same slices as an earlier run
+            String version = version(fileName);
+            int position = 0;
+            while (position < totalChunks && !subRoots.isFailed()) {
+                // the next size is decided once a permit is free, with every call completed so far in the model
+                permits.acquire();
+                int take = scheduler.nextSlice(position, totalChunks - position);
+                int level = AlignedRootAccumulator.levelFor(take);
+                int index = position >> level;
+                SubRootCache.Key key = version == null ? null : cacheKey(fileName, version, position, take);
+                byte[] cached = key == null ? null : cache.get(key);
+                if (cached != null) {
+                    run.cached.incrementAndGet();
+                    MerkleMetrics.count(MerkleMetrics.Counter.CACHE_HITS, 1);
+                    subRoots.add(level, index, cached);
+                    permits.release();
+                    position += take;
+                    continue;
+                }
+                byte[] body = requestBody(fileName, new int[]{position}, new int[]{take});
+                executor.execute(() -> {
+                    try {
+                        long callStart = System.nanoTime();
+                        byte[][] roots = fetch(body, 1, permits, hedges, run);
+                        scheduler.record(take, System.nanoTime() - callStart);
+                        if (key != null) {
+                            cache.put(key, roots[0]);
+                        }
+                        fold(folder, subRoots::fail, () -> subRoots.add(level, index, roots[0]));
+                    } catch (Exception e) {
+                        subRoots.fail(e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+                position += take;
+            }
+            return HexFormat.of().formatHex(subRoots.awaitRoot());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            run.wallNanos = System.nanoTime() - start;
+            executor.shutdownNow();
+            folder.shutdownNow();
+        }
+    }
+
+    // sub-roots are hashed into the upper tree on the one folder thread: hashing on the virtual thread of each call
+    // would build a fresh per-thread digest, or vector engine, for every call
+    private static void fold(ExecutorService folder, Consumer<Throwable> fail, Runnable add) {
+        folder.execute(() -> {
+            try {
+                add.run();
+            } catch (RuntimeException e) {
+                fail.accept(e);
+            }
+        });
+    }
+
+    // version of fileName for the cache, null while caching is off; older versions are dropped from the cache
+    private String version(String fileName) {
+        if (cache == null) {
+            return null;
+        }
+        String version = versions.apply(fileName);
+        cache.invalidate(fileName, version);
+        return version;
+    }
+
+    private SubRootCache.Key cacheKey(String fileName, String version, int skip, int take) {
+        return new SubRootCache.Key(fileName, version, Orchestrator.CHUNK_SIZE, skip, take, hasher.name());
+    }
+
+    private byte[] requestBody(String fileName, int[] skips, int[] takes) {
+        if (rangesPerCall == 0 && skips.length == 1) {
+            return Orchestrator.jsonPayload(fileName, skips[0], takes[0], hasher).getBytes(StandardCharsets.UTF_8);
+        }
+        List<EventPayload> ranges = new ArrayList<>(skips.length);
+        for (int i = 0; i < skips.length; i++) {
+            EventPayload range = new EventPayload();
+            range.fileName = fileName;
+            range.chunkSize = Orchestrator.CHUNK_SIZE;
+            range.skip = skips[i];
+            range.take = takes[i];
+            ranges.add(range);
+        }
+        return BatchProtocol.encodeRequest(hasher.name(), ranges);
+    }
+
+    // count roots from one call
+    private byte[][] fetch(byte[] body, int count, Semaphore permits, Semaphore hedges, RunStats run)
+            throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                byte[][] roots = callHedged(body, hedges, run);
+                if (roots.length != count) {
+                    throw new IOException("Expected " + count + " sub-roots, got " + roots.length);
+                }
+                return roots;
+            } catch (IOException e) {
+                run.failures.incrementAndGet();
+                if (attempt == maxAttempts) {
+                    throw e;
+                }
+                run.retries.incrementAndGet();
+                double jitter = 0.5 + ThreadLocalRandom.current().nextDouble();
+                // the caller's permit is free for other slices during the backoff, and held again on return
+                permits.release();
+                try {
+                    Thread.sleep((long) (retryBackoff.toMillis() * (1L << Math.min(attempt - 1, 20)) * jitter));
+                } finally {
+                    permits.acquireUninterruptibly();
+                }
+            }
+        }
+    }
+
+    private byte[][] callHedged(byte[] body, Semaphore hedges, RunStats run) throws Exception {
+        CompletableFuture<byte[][]> primary = call(body, run);
+        if (hedgeQuantile == 0) {
+            return await(primary);
+        }
+        // the threshold is looked up again on every poll, so calls sent before hedgeMinSamples calls completed
+        // still hedge once it is known; a hedge takes a reserved permit, and the call keeps polling while all are out
+        long sent = System.nanoTime();
+        while (true) {
+            long hedgeAfter = latencies.count() >= hedgeMinSamples ? latencies.quantile(hedgeQuantile) : -1;
+            long waited = System.nanoTime() - sent;
+            long wait = hedgeAfter < 0 || waited >= hedgeAfter ? HEDGE_POLL_NANOS : hedgeAfter - waited;
+            try {
+                return await(primary, wait);
+            } catch (TimeoutException slow) {
+                if (hedgeAfter >= 0 && System.nanoTime() - sent >= hedgeAfter && hedges.tryAcquire()) {
+                    break;
+                }
+            }
+        }
+        run.hedges.incrementAndGet();
+        CompletableFuture<byte[][]> hedge;
+        try {
+            hedge = call(body, run);
+        } catch (RuntimeException e) {
+            hedges.release();
+            throw e;
+        }
+        // the caller's permit goes once the winner returns, the hedge permit is kept until the loser is done too
+        CompletableFuture.allOf(primary, hedge).whenComplete((ignored, error) -> hedges.release());
+        CompletableFuture<byte[][]> first = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger();
+        primary.whenComplete((root, error) -> {
+            if (error == null) {
+                first.complete(root);
+            } else if (failed.incrementAndGet() == 2) {
+                first.completeExceptionally(error);
+            }
+        });
+        hedge.whenComplete((root, error) -> {
+            if (error == null) {
+                if (first.complete(root)) {
+                    run.hedgeWins.incrementAndGet();
+                }
+            } else if (failed.incrementAndGet() == 2) {
+                first.completeExceptionally(error);
+            }
+        });
+        return await(first);
+    }
+
+    private CompletableFuture<byte[][]> call(byte[] body, RunStats run) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(endpoint)
+                .header("Content-Type", rangesPerCall == 0 ? "application/json" : BatchProtocol.CONTENT_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        if (requestTimeout != null) {
+            builder.timeout(requestTimeout);
+        }
+        run.calls.incrementAndGet();
+        long start = System.nanoTime();
+        long metricsStart = MerkleMetrics.start();
+        return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(new IOException("Worker returned " + response.statusCode() + ": "
+                                + new String(response.body(), StandardCharsets.UTF_8)));
+                    }
+                    latencies.record(System.nanoTime() - start);
+                    byte[][] roots;
+                    if (rangesPerCall == 0) {
+                        String hex = new String(response.body(), StandardCharsets.UTF_8).trim();
+                        roots = new byte[][]{HexFormat.of().parseHex(hex)};
+                    } else {
+                        try {
+                            roots = BatchProtocol.decodeResponse(response.body());
+                        } catch (IllegalArgumentException e) {
+                            throw new CompletionException(new IOException(e));
+                        }
+                    }
+                    MerkleMetrics.stop(MerkleMetrics.Phase.REQUEST, "StreamingOrchestrator", metricsStart, roots.length);
+                    return roots;
+                });
+    }
+
+    private static byte[][] await(CompletableFuture<byte[][]> future) throws Exception {
+        return await(future, -1);
+    }
+
+    // unwraps the failure of the call, worker errors and request timeouts surface as IOException and are retried
+    private static byte[][] await(CompletableFuture<byte[][]> future, long timeoutNanos) throws Exception {
+        try {
+            return timeoutNanos < 0 ? future.get() : future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // a LocalWorkerServer over a random file that holds 10% of calls for 2 s, and a p50-hedged run at each
+    // concurrency; throws unless the root matches MerkleTree's and hedges were sent and won
+    public static void checkHedging(int slices, int... concurrencies) throws IOException {
+        int chunksPerWorker = 1024;
+        int totalChunks = slices * chunksPerWorker;
+        Path dataDir = Files.createTempDirectory("merkle-hedging");
+        Path file = dataDir.resolve("hedging.bin");
+        byte[] data = new byte[totalChunks * Orchestrator.CHUNK_SIZE];
+        new SplittableRandom(42).nextBytes(data);
+        Files.write(file, data);
+        MerkleHasher hasher = MerkleHasher.SHA_256;
+        String expected = HexFormat.of().formatHex(MerkleTree.genMerkleRootFromRaw(
+                LambdaWorker.parseData(file.toString(), Orchestrator.CHUNK_SIZE), hasher));
+        LocalWorkerServer server = new LocalWorkerServer(0, dataDir).withDelay(0.1, Duration.ofSeconds(2)).start();
+        try {
+            for (int concurrency : concurrencies) {
+                StreamingOrchestrator orchestrator = new StreamingOrchestrator(server.url(), concurrency, hasher)
+                        .withHedging(0.5, 10);
+                String root = orchestrator.constructMerkleTree(file.getFileName().toString(), chunksPerWorker,
+                        totalChunks);
+                RunStats stats = orchestrator.stats();
+                System.out.println("concurrency " + concurrency + ": " + stats);
+                if (!root.equals(expected)) {
+                    throw new IllegalStateException("Root MISMATCH at concurrency " + concurrency);
+                }
+                if (stats.hedges.get() == 0 || stats.hedgeWins.get() == 0) {
+                    throw new IllegalStateException("No hedge sent or won at concurrency " + concurrency + ": " + stats);
+                }
+            }
+        } finally {
+            server.stop();
+            Files.delete(file);
+            Files.delete(dataDir);
+        }
+    }
+
+    // StreamingOrchestrator [slices] [concurrency...], checkHedging against a local worker
+    public static void main(String[] args) throws IOException {
+        int slices = args.length > 0 ? Integer.parseInt(args[0]) : 98;
+        int[] concurrencies = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[]{4, 16, 200};
+        checkHedging(slices, concurrencies);
+    }
+
+    public static class RunStats {
+        public final AtomicInteger calls = new AtomicInteger();
+        public final AtomicInteger failures = new AtomicInteger();
+        public final AtomicInteger retries = new AtomicInteger();
+        public final AtomicInteger hedges = new AtomicInteger();
+        public final AtomicInteger hedgeWins = new AtomicInteger();
+        public final AtomicInteger duplicates = new AtomicInteger();
+        public final AtomicInteger cached = new AtomicInteger();
+        public volatile long wallNanos;
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + ", failures=" + failures + ", retries=" + retries + ", hedges=" + hedges
+                    + ", hedgeWins=" + hedgeWins + ", duplicates=" + duplicates + ", cached=" + cached
+                    + ", wallMillis=" + wallNanos / 1_000_000;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.cloud.merkle;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+// folds worker sub-roots into the upper tree as they arrive, in the shape generateMerkleTree gives slotCount leaves
+public class SubRootAccumulator {
+    private final MerkleHasher hasher;
+    private final int hashLength;
+    // same layout as FlatMerkleTree, present[l][i] once node i of level l is known
+    private final byte[][] levels;
+    private final int[] sizes;
+    private final boolean[][] present;
+    private final CompletableFuture<byte[]> root = new CompletableFuture<>();
+    private int received;
+
+    public SubRootAccumulator(int slotCount, MerkleHasher hasher) {
+        if (slotCount < 1) {
+            throw new IllegalArgumentException("Need at least one sub-root slot");
+        }
+        this.hasher = hasher;
+        this.hashLength = hasher.digestLength();
+        int height = FlatMerkleTree.levelCount(slotCount);
+        this.levels = new byte[height][];
+        this.sizes = new int[height];
+        this.present = new boolean[height][];
+        int size = slotCount;
+        for (int l = 0; l < height; l++) {
+            sizes[l] = size;
+            levels[l] = FlatMerkleTree.allocateLevel(size, hashLength);
+            present[l] = new boolean[size];
+            size = (size + 1) / 2;
+        }
+    }
+
+    public int slotCount() {
+        return sizes[0];
+    }
+
+    public synchronized int received() {
+        return received;
+    }
+
+    public synchronized boolean contains(int index) {
+        return present[0][index];
+    }
+
+    // returns false for a slot that is already filled, the first sub-root for a slot wins
+    public synchronized boolean add(int index, byte[] subRoot) {
+        if (index < 0 || index >= sizes[0]) {
+            throw new IndexOutOfBoundsException("Slot " + index + " out of range for " + sizes[0] + " slots");
+        }
+        if (present[0][index]) {
+            return false;
+        }
+        System.arraycopy(subRoot, 0, levels[0], index * hashLength, hashLength);
+        present[0][index] = true;
+        received++;
+        // hash upwards while the sibling is known, the last node of an odd level is paired with itself
+        int level = 0;
+        int i = index;
+        while (level + 1 < levels.length) {
+            int sibling = i ^ 1;
+            if (sibling < sizes[level] && !present[level][sibling]) {
+                break;
+            }
+            int left = i & ~1;
+            int right = left + 1 < sizes[level] ? left + 1 : left;
+            hasher.hashNode(levels[level], left * hashLength, levels[level], right * hashLength,
+                    levels[level + 1], (i >> 1) * hashLength);
+            i >>= 1;
+            level++;
+            present[level][i] = true;
+        }
+        if (level == levels.length - 1) {
+            root.complete(Arrays.copyOf(levels[level], hashLength));
+        }
+        return true;
+    }
+
+    public void fail(Throwable cause) {
+        root.completeExceptionally(cause);
+    }
+
+    public boolean isComplete() {
+        return root.isDone() && !root.isCompletedExceptionally();
+    }
+
+    public CompletableFuture<byte[]> rootFuture() {
+        return root;
+    }
+
+    // blocks until every slot has arrived, rethrows the failure passed to fail
+    public byte[] awaitRoot() {
+        return root.join();
+    }
+}
@@ -0,0 +1,195 @@
+package com.cloud.merkle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// roots of computed ranges, a bounded LRU in memory in front of one small file per range on disk;
+// keys carry the version of the source (S3 ETag, or size and modification time of a local file), so a changed
+// source misses on its own and invalidate only reclaims the space of older versions
+public class SubRootCache {
+    public static class Key {
+        final String fileName;
+        final String version;
+        final int chunkSize;
+        final long skip;
+        final int take;
+        final String algorithm;
+
+        public Key(String fileName, String version, int chunkSize, long skip, int take, String algorithm) {
+            this.fileName = fileName;
+            this.version = version;
+            this.chunkSize = chunkSize;
+            this.skip = skip;
+            this.take = take;
+            this.algorithm = algorithm;
+        }
+
+        public static Key of(String version, EventPayload range) {
+            return new Key(range.fileName, version, range.chunkSize, range.skip, range.take,
+                    MerkleHasher.of(range.algorithm).name());
+        }
+
+        // <file>/<version>/<algorithm>-<chunkSize>-<skip>-<take> under the disk tier
+        Path path(Path directory) {
+            return versionDirectory(directory, fileName, version)
+                    .resolve(encode(algorithm) + "-" + chunkSize + "-" + skip + "-" + take);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return chunkSize == key.chunkSize && skip == key.skip && take == key.take && fileName.equals(key.fileName)
+                    && version.equals(key.version) && algorithm.equals(key.algorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileName, version, chunkSize, skip, take, algorithm);
+        }
+    }
+
+    private final int maxEntries;
+    private final Path directory;
+    private final LinkedHashMap<Key, byte[]> memory;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // directory may be null for a memory-only cache
+    public SubRootCache(int maxEntries, Path directory) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Need room for at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.directory = directory;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                return size() > SubRootCache.this.maxEntries;
+            }
+        };
+    }
+
+    // version of a local file, changes whenever it is rewritten
+    public static String fileVersion(Path file) throws IOException {
+        return Files.size(file) + "-" + Files.getLastModifiedTime(file).toMillis();
+    }
+
+    // null on a miss in both tiers, a disk hit is promoted into memory
+    public byte[] get(Key key) {
+        byte[] root;
+        synchronized (this) {
+            root = memory.get(key);
+        }
+        if (root != null) {
+            memoryHits.incrementAndGet();
+            return root.clone();
+        }
+        if (directory != null) {
+            try {
+                root = Files.readAllBytes(key.path(directory));
+            } catch (NoSuchFileException e) {
+                root = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (root != null && root.length > 0) {
+                diskHits.incrementAndGet();
+                synchronized (this) {
+                    memory.put(key, root);
+                }
+                return root.clone();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(Key key, byte[] root) {
+        synchronized (this) {
+            memory.put(key, root.clone());
+        }
+        if (directory != null) {
+            Path path = key.path(directory);
+            try {
+                Files.createDirectories(path.getParent());
+                // written aside and moved, so a reader never sees a partial root
+                Path temp = Files.createTempFile(path.getParent(), "root", ".tmp");
+                Files.write(temp, root);
+                try {
+                    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // drops every entry of fileName that belongs to another version than current
+    public void invalidate(String fileName, String current) {
+        synchronized (this) {
+            memory.keySet().removeIf(key -> key.fileName.equals(fileName) && !key.version.equals(current));
+        }
+        if (directory == null) {
+            return;
+        }
+        Path fileDirectory = directory.resolve(encode(fileName));
+        Path keep = versionDirectory(directory, fileName, current);
+        try (DirectoryStream<Path> versions = Files.newDirectoryStream(fileDirectory)) {
+            for (Path version : versions) {
+                if (!version.equals(keep)) {
+                    deleteRecursively(version);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // nothing cached for this file yet
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized int memorySize() {
+        return memory.size();
+    }
+
+    @Override
+    public String toString() {
+        return "memoryHits=" + memoryHits + ", diskHits=" + diskHits + ", misses=" + misses + ", inMemory=" + memorySize();
+    }
+
+    private static Path versionDirectory(Path directory, String fileName, String version) {
+        return directory.resolve(encode(fileName)).resolve(encode(version));
+    }
+
+    // file and version names may hold '/' or quotes (ETags), so path segments are URL-safe base64
+    private static String encode(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.cloud.merkle;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// virtual threads are looked up reflectively so the code still compiles and runs for the Java 17 target
+public class VirtualThreads {
+    private static final Method NEW_VIRTUAL_EXECUTOR = lookup();
+
+    public static boolean available() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    // one virtual thread per task, or a fixed pool of fallbackThreads daemon threads before Java 21
+    public static ExecutorService newExecutor(int fallbackThreads) {
+        if (NEW_VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return newPlatformExecutor(fallbackThreads);
+    }
+
+    // daemon platform threads, for work that should reuse per-thread state such as digests across tasks
+    public static ExecutorService newPlatformExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.cloud.merkle;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// SHA-256 of LANES independent messages in lockstep, lane k of every vector belongs to message k; messages are
+// loaded one lane at a time, hashed together and stored one lane at a time. Only loaded through
+// VectorSha256Hasher, which checks that jdk.incubator.vector is resolved before touching this class.
+final class VectorSha256 {
+    static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    static final int LANES = SPECIES.length();
+    // longest message that pads into a single block
+    static final int MAX_SHORT = 55;
+
+    private static final VarHandle BIG_ENDIAN_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final int[] H0 = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    // K[t] + W[t] of the padding block after a 64-byte message (a node merge), the same in every lane
+    private static final int[] PADDING_KW = paddingSchedule();
+
+    private final int[] w = new int[64 * LANES];
+    private final int[] state = new int[8 * LANES];
+
+    // a message of at most MAX_SHORT bytes, padded into the first block of lane
+    void loadShort(int lane, byte[] data, int offset, int length) {
+        int full = length >>> 2;
+        for (int t = 0; t < full; t++) {
+            w[t * LANES + lane] = (int) BIG_ENDIAN_INT.get(data, offset + 4 * t);
+        }
+        // trailing message bytes and the 0x80 terminator share a word
+        int word = 0x80 << (24 - 8 * (length & 3));
+        for (int p = 4 * full; p < length; p++) {
+            word |= (data[offset + p] & 0xFF) << (24 - 8 * (p - 4 * full));
+        }
+        w[full * LANES + lane] = word;
+        for (int t = full + 1; t < 15; t++) {
+            w[t * LANES + lane] = 0;
+        }
+        w[15 * LANES + lane] = length << 3;
+    }
+
+    // a 64-byte message, two adjacent 32-byte children, as the first block of lane
+    void loadPair(int lane, byte[] data, int offset) {
+        for (int t = 0; t < 16; t++) {
+            w[t * LANES + lane] = (int) BIG_ENDIAN_INT.get(data, offset + 4 * t);
+        }
+    }
+
+    // every lane loaded with loadShort
+    void hashShort() {
+        reset();
+        compress(false);
+    }
+
+    // every lane loaded with loadPair
+    void hashPairs() {
+        reset();
+        compress(false);
+        compress(true);
+    }
+
+    void store(int lane, byte[] out, int outOffset) {
+        for (int j = 0; j < 8; j++) {
+            BIG_ENDIAN_INT.set(out, outOffset + 4 * j, state[j * LANES + lane]);
+        }
+    }
+
+    private void reset() {
+        for (int j = 0; j < 8; j++) {
+            IntVector.broadcast(SPECIES, H0[j]).intoArray(state, j * LANES);
+        }
+    }
+
+    // one block for every lane, the loaded schedule or the constant padding block
+    private void compress(boolean padding) {
+        if (!padding) {
+            for (int t = 16; t < 64; t++) {
+                IntVector w2 = IntVector.fromArray(SPECIES, w, (t - 2) * LANES);
+                IntVector w15 = IntVector.fromArray(SPECIES, w, (t - 15) * LANES);
+                IntVector s0 = w15.lanewise(VectorOperators.ROR, 7)
+                        .lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.ROR, 18))
+                        .lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.LSHR, 3));
+                IntVector s1 = w2.lanewise(VectorOperators.ROR, 17)
+                        .lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.ROR, 19))
+                        .lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.LSHR, 10));
+                s1.add(IntVector.fromArray(SPECIES, w, (t - 7) * LANES))
+                        .add(s0)
+                        .add(IntVector.fromArray(SPECIES, w, (t - 16) * LANES))
+                        .intoArray(w, t * LANES);
+            }
+        }
+        IntVector a = IntVector.fromArray(SPECIES, state, 0);
+        IntVector b = IntVector.fromArray(SPECIES, state, LANES);
+        IntVector c = IntVector.fromArray(SPECIES, state, 2 * LANES);
+        IntVector d = IntVector.fromArray(SPECIES, state, 3 * LANES);
+        IntVector e = IntVector.fromArray(SPECIES, state, 4 * LANES);
+        IntVector f = IntVector.fromArray(SPECIES, state, 5 * LANES);
+        IntVector g = IntVector.fromArray(SPECIES, state, 6 * LANES);
+        IntVector h = IntVector.fromArray(SPECIES, state, 7 * LANES);
+        for (int t = 0; t < 64; t++) {
+            IntVector kw = padding ? IntVector.broadcast(SPECIES, PADDING_KW[t])
+                    : IntVector.fromArray(SPECIES, w, t * LANES).add(K[t]);
+            IntVector sigma1 = e.lanewise(VectorOperators.ROR, 6)
+                    .lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 11))
+                    .lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 25));
+            // ch(e, f, g) = g ^ (e & (f ^ g))
+            IntVector ch = g.lanewise(VectorOperators.XOR, e.and(f.lanewise(VectorOperators.XOR, g)));
+            IntVector t1 = h.add(sigma1).add(ch).add(kw);
+            IntVector sigma0 = a.lanewise(VectorOperators.ROR, 2)
+                    .lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 13))
+                    .lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 22));
+            // maj(a, b, c) = (a & b) | (c & (a | b))
+            IntVector maj = a.and(b).or(c.and(a.or(b)));
+            h = g;
+            g = f;
+            f = e;
+            e = d.add(t1);
+            d = c;
+            c = b;
+            b = a;
+            a = t1.add(sigma0.add(maj));
+        }
+        a.add(IntVector.fromArray(SPECIES, state, 0)).intoArray(state, 0);
+        b.add(IntVector.fromArray(SPECIES, state, LANES)).intoArray(state, LANES);
+        c.add(IntVector.fromArray(SPECIES, state, 2 * LANES)).intoArray(state, 2 * LANES);
+        d.add(IntVector.fromArray(SPECIES, state, 3 * LANES)).intoArray(state, 3 * LANES);
+        e.add(IntVector.fromArray(SPECIES, state, 4 * LANES)).intoArray(state, 4 * LANES);
+        f.add(IntVector.fromArray(SPECIES, state, 5 * LANES)).intoArray(state, 5 * LANES);
+        g.add(IntVector.fromArray(SPECIES, state, 6 * LANES)).intoArray(state, 6 * LANES);
+        h.add(IntVector.fromArray(SPECIES, state, 7 * LANES)).intoArray(state, 7 * LANES);
+    }
+
+    private static int[] paddingSchedule() {
+        int[] schedule = new int[64];
+        schedule[0] = 0x80000000;
+        schedule[15] = 64 << 3;
+        for (int t = 16; t < 64; t++) {
+            int w2 = schedule[t - 2];
+            int w15 = schedule[t - 15];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            schedule[t] = s1 + schedule[t - 7] + s0 + schedule[t - 16];
+        }
+        for (int t = 0; t < 64; t++) {
+            schedule[t] += K[t];
+        }
+        return schedule;
+    }
+}
@@ -0,0 +1,158 @@
+package com.cloud.merkle;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// SHA-256 whose bulk calls hash VectorSha256.LANES messages in lockstep: hashLeaves of leaves up to 55 bytes (one
+// padded block) and hashNodes (a block plus a constant padding block). Single messages, longer leaves and the
+// tail of a batch go to MessageDigest, the output is the same either way. Built by the vector profile and found by
+// MerkleHasher.SHA_256 by name. The lanes need the JVM started with --add-modules jdk.incubator.vector; without it,
+// or with -Dmerkle.vector=false, sha256() is the plain digest hasher.
+public class VectorSha256Hasher extends DigestMerkleHasher {
+    private static final boolean AVAILABLE = probe();
+
+    private final ThreadLocal<VectorSha256> engines = ThreadLocal.withInitial(VectorSha256::new);
+
+    private VectorSha256Hasher() {
+        super(DigestProvider.SHA_256);
+    }
+
+    public static MerkleHasher sha256() {
+        return AVAILABLE ? new VectorSha256Hasher() : new DigestMerkleHasher(DigestProvider.SHA_256);
+    }
+
+    public static boolean available() {
+        return AVAILABLE;
+    }
+
+    // messages hashed per lockstep group, 1 when the lanes are not in use
+    public static int lanes() {
+        return AVAILABLE ? VectorSha256.LANES : 1;
+    }
+
+    @Override
+    public void hashLeaves(byte[] data, int offset, int length, int count, byte[] out, int outOffset) {
+        if (length > VectorSha256.MAX_SHORT) {
+            super.hashLeaves(data, offset, length, count, out, outOffset);
+            return;
+        }
+        VectorSha256 engine = engines.get();
+        int lanes = VectorSha256.LANES;
+        int i = 0;
+        for (; i + lanes <= count; i += lanes) {
+            for (int k = 0; k < lanes; k++) {
+                engine.loadShort(k, data, offset + (i + k) * length, length);
+            }
+            engine.hashShort();
+            for (int k = 0; k < lanes; k++) {
+                engine.store(k, out, outOffset + (i + k) * 32);
+            }
+        }
+        super.hashLeaves(data, offset + i * length, length, count - i, out, outOffset + i * 32);
+    }
+
+    @Override
+    public void hashLeaves(byte[][] data, int from, int to, byte[] out, int outOffset) {
+        VectorSha256 engine = engines.get();
+        int lanes = VectorSha256.LANES;
+        // indices of the short leaves loaded so far, long ones are hashed on the spot
+        int[] loaded = new int[lanes];
+        int filled = 0;
+        for (int i = from; i < to; i++) {
+            if (data[i].length > VectorSha256.MAX_SHORT) {
+                hashLeaf(data[i], 0, data[i].length, out, outOffset + (i - from) * 32);
+                continue;
+            }
+            engine.loadShort(filled, data[i], 0, data[i].length);
+            loaded[filled++] = i;
+            if (filled == lanes) {
+                engine.hashShort();
+                for (int k = 0; k < lanes; k++) {
+                    engine.store(k, out, outOffset + (loaded[k] - from) * 32);
+                }
+                filled = 0;
+            }
+        }
+        for (int k = 0; k < filled; k++) {
+            byte[] leaf = data[loaded[k]];
+            hashLeaf(leaf, 0, leaf.length, out, outOffset + (loaded[k] - from) * 32);
+        }
+    }
+
+    @Override
+    public void hashLeaves(ByteBuffer data, int length, int count, byte[] out, int outOffset) {
+        if (length > VectorSha256.MAX_SHORT) {
+            super.hashLeaves(data, length, count, out, outOffset);
+            return;
+        }
+        if (data.hasArray()) {
+            hashLeaves(data.array(), data.arrayOffset() + data.position(), length, count, out, outOffset);
+            data.position(data.position() + count * length);
+            return;
+        }
+        // direct and mapped buffers are copied a group at a time
+        int lanes = VectorSha256.LANES;
+        byte[] group = new byte[lanes * length];
+        int i = 0;
+        for (; i + lanes <= count; i += lanes) {
+            data.get(group);
+            hashLeaves(group, 0, length, lanes, out, outOffset + i * 32);
+        }
+        super.hashLeaves(data, length, count - i, out, outOffset + i * 32);
+    }
+
+    @Override
+    public void hashNodes(byte[] children, int offset, int count, byte[] out, int outOffset) {
+        VectorSha256 engine = engines.get();
+        int lanes = VectorSha256.LANES;
+        int i = 0;
+        for (; i + lanes <= count; i += lanes) {
+            // every pair of the group is loaded before any parent is stored, so out may alias children
+            for (int k = 0; k < lanes; k++) {
+                engine.loadPair(k, children, offset + (i + k) * 64);
+            }
+            engine.hashPairs();
+            for (int k = 0; k < lanes; k++) {
+                engine.store(k, out, outOffset + (i + k) * 32);
+            }
+        }
+        super.hashNodes(children, offset + i * 64, count - i, out, outOffset + i * 32);
+    }
+
+    private static boolean probe() {
+        if (!Boolean.parseBoolean(System.getProperty("merkle.vector", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            // fewer than 4 lanes is no SIMD worth the lockstep
+            return VectorSha256.LANES >= 4 && selfCheck();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    // lane k hashes k bytes, compared against MessageDigest before the lanes are trusted
+    private static boolean selfCheck() {
+        VectorSha256 engine = new VectorSha256();
+        byte[] data = new byte[VectorSha256.LANES];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (31 * i + 7);
+        }
+        for (int k = 0; k < VectorSha256.LANES; k++) {
+            engine.loadShort(k, data, 0, Math.min(k, VectorSha256.MAX_SHORT));
+        }
+        engine.hashShort();
+        MessageDigest md = DigestProvider.newDigest(DigestProvider.SHA_256);
+        byte[] hash = new byte[32];
+        for (int k = 0; k < VectorSha256.LANES; k++) {
+            engine.store(k, hash, 0);
+            md.update(data, 0, Math.min(k, VectorSha256.MAX_SHORT));
+            if (!Arrays.equals(hash, md.digest())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}